@@ -0,0 +1,134 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single device read and conversion paths against TiINA219Simulator with no
+ * bus latency, so the scores are the driver cost alone.
+ * 
+ * The transactions and measurements counters give the I2C transactions per
+ * measurement; run with -prof gc for the bytes allocated per sample
+ * (gc.alloc.rate.norm).
+ * 
+ * @author TiJOS
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TiINA219Benchmark {
+
+	static final int ADDR = TiINA219.INA219_ADDR_GG;
+
+	TiINA219Simulator simulator;
+	TiINA219 ina219;
+	TiINA219Snapshot snapshot = new TiINA219Snapshot();
+	TiINA219Calibration calibration;
+
+	/**
+	 * I2C transactions per iteration, divide by measurements
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Transactions {
+		public long transactions;
+		public long measurements;
+
+		private long start;
+
+		@Setup(Level.Iteration)
+		public void begin(TiINA219Benchmark benchmark) {
+			transactions = 0;
+			measurements = 0;
+			start = count(benchmark.simulator);
+		}
+
+		@TearDown(Level.Iteration)
+		public void end(TiINA219Benchmark benchmark) {
+			transactions = count(benchmark.simulator) - start;
+		}
+
+		static long count(TiINA219Simulator simulator) {
+			return simulator.getReadCount() + simulator.getWriteCount();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		simulator = new TiINA219Simulator();
+		simulator.addDevice(ADDR);
+		simulator.setInput(ADDR, 12340, 12000);
+
+		ina219 = new TiINA219(simulator, ADDR);
+		ina219.setCalibration_32V_2A();
+		calibration = ina219.getCalibration();
+		ina219.readSnapshot(snapshot);
+	}
+
+	@Benchmark
+	public double getCurrent_mA(Transactions counters) throws IOException {
+		counters.measurements++;
+		return ina219.getCurrent_mA();
+	}
+
+	@Benchmark
+	public double getBusVoltage_V(Transactions counters) throws IOException {
+		counters.measurements++;
+		return ina219.getBusVoltage_V();
+	}
+
+	@Benchmark
+	public double getShuntVoltage_mV(Transactions counters) throws IOException {
+		counters.measurements++;
+		return ina219.getShuntVoltage_mV();
+	}
+
+	@Benchmark
+	public double getPower_mW(Transactions counters) throws IOException {
+		counters.measurements++;
+		return ina219.getPower_mW();
+	}
+
+	@Benchmark
+	public TiINA219Snapshot readSnapshot(Transactions counters) throws IOException {
+		counters.measurements++;
+		return ina219.readSnapshot(snapshot);
+	}
+
+	/*
+	 * Conversions only, no bus access
+	 */
+
+	@Benchmark
+	public int toCurrent_uA() {
+		return calibration.toCurrent_uA(snapshot.currentRaw);
+	}
+
+	@Benchmark
+	public long toPower_uW() {
+		return calibration.toPower_uW(snapshot.powerRaw);
+	}
+
+	@Benchmark
+	public double snapshotCurrent_mA() {
+		return snapshot.getCurrent_mA();
+	}
+
+}
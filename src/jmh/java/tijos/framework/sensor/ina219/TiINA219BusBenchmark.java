@@ -0,0 +1,83 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Snapshot throughput of several threads sharing one bus, each thread reading
+ * its own device. A non-zero latency models the time a transaction holds the
+ * bus (about 500us for a register read at 100kHz).
+ * 
+ * @author TiJOS
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TiINA219BusBenchmark {
+
+	@Param({ "1", "4", "16" })
+	int devices;
+
+	@Param({ "0", "100" })
+	int latency_us;
+
+	TiINA219Simulator simulator;
+	TiINA219[] sensors;
+
+	/**
+	 * Device and snapshot of one benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Reader {
+		private static int next = 0;
+
+		TiINA219 ina219;
+		TiINA219Snapshot snapshot = new TiINA219Snapshot();
+
+		@Setup(Level.Trial)
+		public void setup(TiINA219BusBenchmark benchmark) {
+			synchronized (Reader.class) {
+				ina219 = benchmark.sensors[next++ % benchmark.sensors.length];
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		simulator = new TiINA219Simulator();
+		sensors = new TiINA219[devices];
+		for (int i = 0; i < devices; i++) {
+			int addr = TiINA219.INA219_ADDR_GG + i;
+			simulator.addDevice(addr);
+			simulator.setInput(addr, 1000 * (i + 1), 5000);
+
+			sensors[i] = new TiINA219(simulator, addr);
+			sensors[i].setCalibration_32V_1A();
+		}
+		simulator.setLatency_us(latency_us);
+	}
+
+	@Benchmark
+	public TiINA219Snapshot readSnapshot(Reader reader) throws IOException {
+		return reader.ina219.readSnapshot(reader.snapshot);
+	}
+
+}
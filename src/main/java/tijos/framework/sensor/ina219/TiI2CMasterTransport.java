@@ -0,0 +1,58 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiI2CMaster;
+
+/**
+ * TiINA219Transport over a TiJOS TiI2CMaster. Every transaction is
+ * synchronized on the master, so other drivers sharing it and synchronizing on
+ * it are excluded as well.
+ * 
+ * @author TiJOS
+ */
+public class TiI2CMasterTransport implements TiINA219Transport {
+
+	/**
+	 * TiI2CMaster object
+	 */
+	private TiI2CMaster i2cmObj;
+
+	/**
+	 * Initialize the transport
+	 * 
+	 * @param i2c
+	 *            I2C master object for communication
+	 */
+	public TiI2CMasterTransport(TiI2CMaster i2c) {
+		this.i2cmObj = i2c;
+	}
+
+	/**
+	 * Gets the I2C master
+	 * 
+	 * @return
+	 */
+	public TiI2CMaster getMaster() {
+		return i2cmObj;
+	}
+
+	public void read(int address, int register, byte[] buffer, int start, int length) throws IOException {
+		synchronized (i2cmObj) {
+			i2cmObj.read(address, register, buffer, start, length);
+		}
+	}
+
+	public void read(int address, byte[] buffer, int start, int length) throws IOException {
+		synchronized (i2cmObj) {
+			i2cmObj.read(address, buffer, start, length);
+		}
+	}
+
+	public void write(int address, int register, byte[] buffer, int start, int length) throws IOException {
+		synchronized (i2cmObj) {
+			i2cmObj.write(address, register, buffer, start, length);
+		}
+	}
+
+}
@@ -1,8 +1,8 @@
 package tijos.framework.sensor.ina219;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import tijos.framework.devicecenter.TiI2CMaster;
-import tijos.framework.util.BigBitConverter;
 
 /*Supply measurement chip (TI INA 219)
 http://www.ti.com/product/ina219
@@ -23,30 +23,6 @@ The I2C interface features 16 programmable address
  * 
  * @author TiJOS 
  */
-
-class TiINA219Register {
-
-	// CONFIG REGISTER (R/W)
-	public static final int INA219_REG_CONFIG = 0x00;
-
-	// SHUNT VOLTAGE REGISTER (R)
-	public static final int INA219_REG_SHUNTVOLTAGE = 0x01;
-
-	// BUS VOLTAGE REGISTER =R;
-	public static final int INA219_REG_BUSVOLTAGE = 0x02;
-	// POWER REGISTER =R;
-	public static final int INA219_REG_POWER = 0x03;
-	// CURRENT REGISTER =R;
-	public static final int INA219_REG_CURRENT = 0x04;
-	// CALIBRATION REGISTER =R/W;
-	public static final int INA219_REG_CALIBRATION = 0x05;
-}
-
-/**
- * 
- * @author Administrator
- *
- */
 public class TiINA219 {
 
 	/////////// ADDRESS /////////////////////////////
@@ -138,22 +114,58 @@ public class TiINA219 {
 	public static final int INA219_CONFIG_MODE_BVOLT_CONTINUOUS = 0x0006;
 	public static final int INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS = 0x0007;
 
+	/////////// CALIBRATION GUARD ///////////////////
+
+	// Rewrite the calibration register before every CURRENT/POWER read, for
+	// boards that brown out often
+	public static final int CALIBRATION_GUARD_PARANOID = 0;
+	// Rewrite the calibration register only when a chip reset is detected
+	public static final int CALIBRATION_GUARD_DETECT = 1;
+
+	// Longest sleep after consecutive read errors, see errorBackoff()
+	static final int MAX_ERROR_BACKOFF_US = 1000000;
+
+	// Conversion time in us of the 4-bit BADC/SADC field
+	static final int[] CONVERSION_TIME_US = { 84, 148, 276, 532, 84, 148, 276, 532, 532, 1060, 2130, 4260, 8510,
+			17020, 34050, 68100 };
+
 	/**
-	 * TiI2CMaster object
+	 * Arbiter of the TiI2CMaster the device is connected to
 	 */
-	private TiI2CMaster i2cmObj;
+	private TiINA219Bus bus;
 
 	// I2C Address
 	public int i2cSlaveAddr = INA219_ADDR_GG;
 
+	// Per-device transfer buffer, only used while holding the bus
 	byte[] data = new byte[8];
 
 	int ina219_i2caddr;
-	long ina219_calValue;
-	// The following multipliers are used to convert raw current and power
-	// values to mA and mW, taking into account the current config settings
-	long ina219_currentDivider_mA = 0;
-	long ina219_powerDivider_mW = 0;
+
+	// Calibration in use, converts raw current and power values taking into
+	// account the current config settings, null if not configured
+	TiINA219Calibration ina219_calibration;
+
+	// Calibration the CURRENT and POWER registers still hold values of after
+	// a change, until the next conversion completes, null if none pending
+	TiINA219Calibration ina219_previousCalibration;
+
+	// Shadow of the CONFIG register as last written, -1 if not configured
+	int ina219_config = -1;
+
+	// Calibration guard mode and readback cadence (in CURRENT/POWER reads)
+	int ina219_guardMode = CALIBRATION_GUARD_DETECT;
+	int ina219_guardInterval = 0;
+	int ina219_guardCount = 0;
+
+	// PGA auto-ranging applied after every snapshot, null if disabled
+	TiINA219AutoRange ina219_autoRange;
+
+	// Timestamp of the last conversion returned by readNextSnapshot()
+	long ina219_lastConversion_us = 0;
+
+	// setCalibration() verifies the registers before writing them
+	boolean ina219_warmStart = false;
 
 	/**
 	 * Initialize object with i2c communication object, default slave address is
@@ -175,10 +187,219 @@ public class TiINA219 {
 	 *            slave address as the device HW configuration
 	 */
 	public TiINA219(TiI2CMaster i2c, int addr) {
-		this.i2cmObj = i2c;
+		this(TiINA219Bus.forMaster(i2c), addr);
+	}
+
+	/**
+	 * Initialize object with a register transport and slave address, e.g. a
+	 * TiINA219Simulator
+	 * 
+	 * @param transport
+	 *            transport to the device
+	 * @param addr
+	 *            slave address as the device HW configuration
+	 */
+	public TiINA219(TiINA219Transport transport, int addr) {
+		this(TiINA219Bus.forTransport(transport), addr);
+	}
+
+	/**
+	 * Initialize object with the bus arbiter and slave address
+	 * 
+	 * @param bus
+	 *            arbiter shared by the devices on the same I2C master
+	 * @param addr
+	 *            slave address as the device HW configuration
+	 */
+	public TiINA219(TiINA219Bus bus, int addr) {
+		this.bus = bus;
 		this.i2cSlaveAddr = addr;
 	}
 
+	/**
+	 * Gets the bus arbiter of the device, synchronizing on it makes a sequence
+	 * of register accesses atomic
+	 * 
+	 * @return
+	 */
+	public TiINA219Bus getBus() {
+		return bus;
+	}
+
+	/**
+	 * Enables the metrics of this device, updated by every transaction with it
+	 * 
+	 * @param metrics
+	 *            metrics, or null to disable
+	 */
+	public void setMetrics(TiINA219Metrics metrics) {
+		bus.setDeviceMetrics(this.i2cSlaveAddr, metrics);
+	}
+
+	/**
+	 * Gets the metrics of this device
+	 * 
+	 * @return metrics, or null if disabled
+	 */
+	public TiINA219Metrics getMetrics() {
+		return bus.getDeviceMetrics(this.i2cSlaveAddr);
+	}
+
+	/**
+	 * Checks whether a device answers at the slave address by reading its
+	 * config register
+	 * 
+	 * @return true if the device acknowledged the read
+	 */
+	public boolean probe() {
+		try {
+			wireReadRegister(TiINA219Register.INA219_REG_CONFIG);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Applies a calibration profile, writing the calibration and config
+	 * registers
+	 * 
+	 * @param calibration
+	 *            profile computed for the shunt and load of the board
+	 * @throws IOException
+	 */
+	public void setCalibration(TiINA219Calibration calibration) throws IOException {
+		synchronized (bus) {
+			if (ina219_warmStart) {
+				warmStart(calibration);
+				return;
+			}
+
+			// Set Calibration register to 'Cal' calculated by the profile
+			wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, calibration.getCalValue());
+
+			// Set Config register to take into account the settings of the
+			// profile
+			wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, calibration.getConfig());
+
+			ina219_calibration = calibration;
+			ina219_config = calibration.getConfig();
+		}
+	}
+
+	/**
+	 * Applies a calibration profile after an application restart. The
+	 * calibration and config registers are read back and only the ones that
+	 * differ from the profile are written. If none is written the device has
+	 * kept converting with the profile and its readings can be trusted at
+	 * once, otherwise readNextSnapshot() waits for a full conversion.
+	 * 
+	 * @param calibration
+	 *            profile computed for the shunt and load of the board
+	 * @return true if the device was already configured, nothing was written
+	 * @throws IOException
+	 */
+	public boolean warmStart(TiINA219Calibration calibration) throws IOException {
+		synchronized (bus) {
+			boolean configured = true;
+
+			// The LSB of the calibration register is always 0
+			int cal = wireReadRegister(TiINA219Register.INA219_REG_CALIBRATION) & 0xfffe;
+			if (cal != (calibration.getCalValue() & 0xfffe)) {
+				wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, calibration.getCalValue());
+				configured = false;
+			}
+
+			int config = wireReadRegister(TiINA219Register.INA219_REG_CONFIG) & 0xffff;
+			if (config != calibration.getConfig()) {
+				wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, calibration.getConfig());
+				configured = false;
+			}
+
+			ina219_calibration = calibration;
+			ina219_config = calibration.getConfig();
+
+			if (!configured) {
+				// CURRENT and POWER are only valid after the next conversion
+				ina219_lastConversion_us = now_us();
+			}
+			return configured;
+		}
+	}
+
+	/**
+	 * Makes setCalibration() and the setCalibration_* presets verify the
+	 * registers and write only the ones that differ, see warmStart()
+	 * 
+	 * @param enabled
+	 *            true to verify before writing
+	 */
+	public void setWarmStart(boolean enabled) {
+		ina219_warmStart = enabled;
+	}
+
+	/**
+	 * Switches to another calibration, writing only the registers whose value
+	 * changes. Only the gain bits of the config register are taken from the
+	 * calibration, the mode is kept.
+	 * 
+	 * @param calibration
+	 * @throws IOException
+	 */
+	void updateCalibration(TiINA219Calibration calibration) throws IOException {
+		synchronized (bus) {
+			if (ina219_calibration == null || ina219_config < 0) {
+				setCalibration(calibration);
+				return;
+			}
+
+			boolean calChanged = calibration.getCalValue() != ina219_calibration.getCalValue();
+			if (calChanged) {
+				wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, calibration.getCalValue());
+			}
+
+			// Writing the config also restarts the conversion and clears
+			// CNVR, the next CNVR then marks values of the new calibration
+			int config = (ina219_config & ~INA219_CONFIG_GAIN_MASK) | calibration.getGain();
+			if (calChanged || config != ina219_config) {
+				wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, config);
+				ina219_config = config;
+				if (ina219_previousCalibration == null) {
+					ina219_previousCalibration = ina219_calibration;
+				}
+			}
+			ina219_calibration = calibration;
+		}
+	}
+
+	/**
+	 * Enables PGA auto-ranging, evaluated after every snapshot read. The
+	 * calibration of the auto-ranging for the current gain (or the widest
+	 * range if not configured) is applied immediately.
+	 * 
+	 * @param autoRange
+	 *            auto-ranging settings, null to disable
+	 * @throws IOException
+	 */
+	public void setAutoRange(TiINA219AutoRange autoRange) throws IOException {
+		synchronized (bus) {
+			if (autoRange != null) {
+				int gain = ina219_calibration != null ? ina219_calibration.getGain() : INA219_CONFIG_GAIN_8_320MV;
+				updateCalibration(autoRange.getCalibration(gain));
+			}
+			ina219_autoRange = autoRange;
+		}
+	}
+
+	/**
+	 * Gets the calibration in use
+	 * 
+	 * @return calibration profile or null if not configured
+	 */
+	public TiINA219Calibration getCalibration() {
+		return ina219_calibration;
+	}
+
 	/**
 	 * Configures to INA219 to be able to measure up to 32V and 2A of current.
 	 * Each unit of current corresponds to 100uA, and each unit of power
@@ -221,8 +442,6 @@ public class TiINA219 {
 		// Cal = trunc (0.04096 / (Current_LSB * RSHUNT))
 		// Cal = 4096 (0x1000)
 
-		ina219_calValue = 4096;
-
 		// 6. Calculate the power LSB
 		// PowerLSB = 20 * CurrentLSB
 		// PowerLSB = 0.002 (2mW per bit)
@@ -253,19 +472,9 @@ public class TiINA219 {
 		// MaximumPower = 3.2 * 32V
 		// MaximumPower = 102.4W
 
-		// Set multipliers to convert raw current/power values
-		ina219_currentDivider_mA = 10; // Current LSB = 100uA per bit (1000/100
-										// = 10)
-		ina219_powerDivider_mW = 2; // Power LSB = 1mW per bit (2/1)
-
-		// Set Calibration register to 'Cal' calculated above
-		wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, (int) ina219_calValue);
-
-		// Set Config register to take into account the settings above
-		int config = INA219_CONFIG_BVOLTAGERANGE_32V | INA219_CONFIG_GAIN_8_320MV | INA219_CONFIG_BADCRES_12BIT
-				| INA219_CONFIG_SADCRES_12BIT_1S_532US | INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS;
-
-		wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, config);
+		// Current LSB = 100uA per bit, Power LSB = 2mW per bit
+		setCalibration(TiINA219Calibration.withCurrentLSB(100000, 100, INA219_CONFIG_BVOLTAGERANGE_32V,
+				INA219_CONFIG_GAIN_8_320MV, INA219_CONFIG_BADCRES_12BIT, INA219_CONFIG_SADCRES_12BIT_1S_532US));
 	}
 
 	/**
@@ -307,8 +516,6 @@ public class TiINA219 {
 		// Cal = trunc (0.04096 / (Current_LSB * RSHUNT))
 		// Cal = 10240 (0x2800)
 
-		ina219_calValue = 10240;
-
 		// 6. Calculate the power LSB
 		// PowerLSB = 20 * CurrentLSB
 		// PowerLSB = 0.0008 (800�W per bit)
@@ -342,18 +549,9 @@ public class TiINA219 {
 		// MaximumPower = 1.31068 * 32V
 		// MaximumPower = 41.94176W
 
-		// Set multipliers to convert raw current/power values
-		ina219_currentDivider_mA = 25; // Current LSB = 40uA per bit (1000/40 =
-										// 25)
-		ina219_powerDivider_mW = 1; // Power LSB = 800�W per bit
-
-		// Set Calibration register to 'Cal' calculated above
-		wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, (int) ina219_calValue);
-
-		// Set Config register to take into account the settings above
-		int config = INA219_CONFIG_BVOLTAGERANGE_32V | INA219_CONFIG_GAIN_8_320MV | INA219_CONFIG_BADCRES_12BIT
-				| INA219_CONFIG_SADCRES_12BIT_1S_532US | INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS;
-		wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, config);
+		// Current LSB = 40uA per bit, Power LSB = 800uW per bit
+		setCalibration(TiINA219Calibration.withCurrentLSB(100000, 40, INA219_CONFIG_BVOLTAGERANGE_32V,
+				INA219_CONFIG_GAIN_8_320MV, INA219_CONFIG_BADCRES_12BIT, INA219_CONFIG_SADCRES_12BIT_1S_532US));
 	}
 
 	public void setCalibration_16V_400mA() throws IOException {
@@ -387,8 +585,6 @@ public class TiINA219 {
 		// Cal = trunc (0.04096 / (Current_LSB * RSHUNT))
 		// Cal = 8192 (0x2000)
 
-		ina219_calValue = 8192;
-
 		// 6. Calculate the power LSB
 		// PowerLSB = 20 * CurrentLSB
 		// PowerLSB = 0.001 (1mW per bit)
@@ -425,18 +621,9 @@ public class TiINA219 {
 		// MaximumPower = 0.4 * 16V
 		// MaximumPower = 6.4W
 
-		// Set multipliers to convert raw current/power values
-		ina219_currentDivider_mA = 20; // Current LSB = 50uA per bit (1000/50 =
-										// 20)
-		ina219_powerDivider_mW = 1; // Power LSB = 1mW per bit
-
-		// Set Calibration register to 'Cal' calculated above
-		wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, (int) ina219_calValue);
-
-		// Set Config register to take into account the settings above
-		int config = INA219_CONFIG_BVOLTAGERANGE_16V | INA219_CONFIG_GAIN_1_40MV | INA219_CONFIG_BADCRES_12BIT
-				| INA219_CONFIG_SADCRES_12BIT_1S_532US | INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS;
-		wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, config);
+		// Current LSB = 50uA per bit, Power LSB = 1mW per bit
+		setCalibration(TiINA219Calibration.withCurrentLSB(100000, 50, INA219_CONFIG_BVOLTAGERANGE_16V,
+				INA219_CONFIG_GAIN_1_40MV, INA219_CONFIG_BADCRES_12BIT, INA219_CONFIG_SADCRES_12BIT_1S_532US));
 	}
 
 	/**
@@ -447,9 +634,8 @@ public class TiINA219 {
 	 */
 	public int getBusVoltage_raw() throws IOException {
 
-		this.i2cmObj.read(this.i2cSlaveAddr, TiINA219Register.INA219_REG_BUSVOLTAGE, data, 0, 2);
-		int value =  BigBitConverter.ToInt16(data, 0);
-		
+		int value = wireReadRegister(TiINA219Register.INA219_REG_BUSVOLTAGE) & 0xffff;
+
 		// Shift to the right 3 to drop CNVR and OVF and multiply by LSB
 		return ((value >> 3) * 4);
 	}
@@ -461,18 +647,128 @@ public class TiINA219 {
 	 * @throws IOException
 	 */
 	public int getCurrent_raw() throws IOException {
+		return readCalibratedRegister(TiINA219Register.INA219_REG_CURRENT);
+	}
 
-		// Sometimes a sharp load will reset the INA219, which will
-		// reset the cal register, meaning CURRENT and POWER will
-		// not be available ... avoid this by always setting a cal
-		// value even if it's an unfortunate extra step
-		wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, (int) ina219_calValue);
+	/**
+	 * Gets the raw power value (16-bit unsigned integer, so 0..65535)
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public int getPower_raw() throws IOException {
+		return readCalibratedRegister(TiINA219Register.INA219_REG_POWER) & 0xffff;
+	}
+
+	/**
+	 * Reads CURRENT or POWER, which both depend on the calibration register
+	 * 
+	 * @param register
+	 *            INA219_REG_CURRENT or INA219_REG_POWER
+	 * @return register value as 16-bit signed integer
+	 * @throws IOException
+	 */
+	private int readCalibratedRegister(int register) throws IOException {
+		synchronized (bus) {
+			// Sometimes a sharp load will reset the INA219, which will
+			// reset the cal register, meaning CURRENT and POWER will
+			// not be available. In paranoid mode avoid this by always
+			// setting a cal value even if it's an unfortunate extra step
+			if (ina219_guardMode == CALIBRATION_GUARD_PARANOID) {
+				wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, calibration().getCalValue());
+			} else if (ina219_guardInterval > 0 && ++ina219_guardCount >= ina219_guardInterval) {
+				ina219_guardCount = 0;
+				restoreCalibration();
+			}
+
+			int value = wireReadRegister(register);
+
+			// A lost calibration reads as zero, only then is it worth
+			// checking the calibration register
+			if (value == 0 && ina219_guardMode == CALIBRATION_GUARD_DETECT && restoreCalibration()) {
+				value = wireReadRegister(register);
+			}
+
+			return value;
+		}
+	}
+
+	/**
+	 * Selects how the calibration register is protected against chip resets.
+	 * In CALIBRATION_GUARD_DETECT mode the calibration register is read back
+	 * when the CURRENT or POWER register is zero and, if checkInterval is
+	 * positive, every checkInterval CURRENT/POWER reads. It is only rewritten
+	 * when it was actually lost. CALIBRATION_GUARD_PARANOID rewrites it before
+	 * every read.
+	 * 
+	 * With pointer tracking on the bus, CURRENT and POWER are only read with
+	 * bare transactions in CALIBRATION_GUARD_DETECT mode when checkInterval is
+	 * positive and not below the resync interval, so a reset is found by the
+	 * readback before the pointer would have been written again. The
+	 * calibration write of CALIBRATION_GUARD_PARANOID moves the pointer, its
+	 * reads are always addressed.
+	 * 
+	 * @param mode
+	 *            CALIBRATION_GUARD_DETECT or CALIBRATION_GUARD_PARANOID
+	 * @param checkInterval
+	 *            number of CURRENT/POWER reads between two readbacks, 0 to
+	 *            only check on zero readings
+	 */
+	public void setCalibrationGuard(int mode, int checkInterval) {
+		if (mode != CALIBRATION_GUARD_PARANOID && mode != CALIBRATION_GUARD_DETECT) {
+			throw new IllegalArgumentException("Invalid calibration guard mode " + mode);
+		}
+		if (checkInterval < 0) {
+			throw new IllegalArgumentException("Invalid check interval " + checkInterval);
+		}
+
+		ina219_guardMode = mode;
+		ina219_guardInterval = checkInterval;
+		ina219_guardCount = 0;
+	}
+
+	/**
+	 * Reads back the calibration and config registers and rewrites both from
+	 * the shadow values if the chip has been reset
+	 * 
+	 * @return true if the registers had to be restored
+	 * @throws IOException
+	 */
+	public boolean restoreCalibration() throws IOException {
+		synchronized (bus) {
+			if (ina219_calibration == null) {
+				// Not configured yet, nothing to restore
+				return false;
+			}
+
+			int cal = wireReadRegister(TiINA219Register.INA219_REG_CALIBRATION) & 0xffff;
+			if (cal == ina219_calibration.getCalValue()) {
+				return false;
+			}
+
+			wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, ina219_calibration.getCalValue());
+			wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, ina219_config);
+			bus.recordCalibrationRewrite(this.i2cSlaveAddr);
+			return true;
+		}
+	}
 
-		// Now we can safely read the CURRENT register!
-		this.i2cmObj.read(this.i2cSlaveAddr, TiINA219Register.INA219_REG_CURRENT, data, 0, 2);
-		int value =  BigBitConverter.ToInt16(data, 0);
-		
-		return value;
+	/**
+	 * Writes the calibration and config registers again from the shadow
+	 * values, after the device has failed or been power cycled
+	 * 
+	 * @throws IOException
+	 */
+	public void reinitialize() throws IOException {
+		synchronized (bus) {
+			if (ina219_calibration == null) {
+				// Not configured yet, nothing to restore
+				return;
+			}
+
+			wireWriteRegister(TiINA219Register.INA219_REG_CALIBRATION, ina219_calibration.getCalValue());
+			wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, ina219_config);
+		}
 	}
 
 	/**
@@ -482,8 +778,17 @@ public class TiINA219 {
 	 * @throws IOException
 	 */
 	public double getShuntVoltage_mV() throws IOException {
-		int value = getShuntVoltage_raw();
-		return value * 0.01;
+		return getShuntVoltage_uV() * 0.001;
+	}
+
+	/**
+	 * Gets the shunt voltage in uV using integer arithmetic only
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public int getShuntVoltage_uV() throws IOException {
+		return getShuntVoltage_raw() * 10;
 	}
 
 	/**
@@ -493,21 +798,28 @@ public class TiINA219 {
 	 * @throws IOException
 	 */
 	public int getShuntVoltage_raw() throws IOException {
-		this.i2cmObj.read(this.i2cSlaveAddr, TiINA219Register.INA219_REG_SHUNTVOLTAGE, data, 0, 2);
-		int value =  BigBitConverter.ToInt16(data, 0);
-		
-		return value;
+		return wireReadRegister(TiINA219Register.INA219_REG_SHUNTVOLTAGE);
 	}
 
 	/**
-	 * Gets the shunt voltage in volts
+	 * Gets the bus voltage in volts
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public double getBusVoltage_V() throws IOException {
-		int value = getBusVoltage_raw();
-		return value * 0.001;
+		return getBusVoltage_mV() * 0.001;
+	}
+
+	/**
+	 * Gets the bus voltage in mV using integer arithmetic only
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public int getBusVoltage_mV() throws IOException {
+		// The raw bus voltage is already scaled to 1mV per bit
+		return getBusVoltage_raw();
 	}
 
 	/**
@@ -518,12 +830,363 @@ public class TiINA219 {
 	 * @throws IOException
 	 */
 	public double getCurrent_mA() throws IOException {
-		double valueDec = getCurrent_raw();
-		valueDec /= ina219_currentDivider_mA;
-		return valueDec;
+		return getCurrent_uA() * 0.001;
+	}
+
+	/**
+	 * Gets the current value in uA using integer arithmetic only, taking into
+	 * account the config settings and current LSB
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public int getCurrent_uA() throws IOException {
+		return calibration().toCurrent_uA(getCurrent_raw());
+	}
+
+	/**
+	 * Gets the power value in mW, as computed by the chip from the current
+	 * and bus voltage of the same conversion
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public double getPower_mW() throws IOException {
+		return getPower_uW() * 0.001;
+	}
+
+	/**
+	 * Gets the power value in uW using integer arithmetic only
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long getPower_uW() throws IOException {
+		return calibration().toPower_uW(getPower_raw());
+	}
+
+
+
+	/**
+	 * Reads shunt voltage, bus voltage, current and power back to back under
+	 * the bus lock into the given holder, so that all values belong to the
+	 * same conversion. The bus voltage register is read first to catch the
+	 * CNVR flag, which the power read clears.
+	 * 
+	 * @param reuse
+	 *            holder to fill, a new one is allocated if null
+	 * @return the filled holder
+	 * @throws IOException
+	 */
+	public TiINA219Snapshot readSnapshot(TiINA219Snapshot reuse) throws IOException {
+		TiINA219Snapshot snapshot = reuse;
+		if (snapshot == null) {
+			snapshot = new TiINA219Snapshot();
+		}
+
+		readSnapshot(snapshot, false);
+		return snapshot;
 	}
 
+	/**
+	 * Waits for the next conversion, signalled by the CNVR flag, and reads it
+	 * into the given holder. The wait skips the expected conversion time
+	 * computed from the ADC settings before polling the flag, and reading the
+	 * POWER register clears it, so every conversion is returned exactly once.
+	 * A math overflow is reported by TiINA219Snapshot.isOverflow().
+	 * 
+	 * @param reuse
+	 *            holder to fill, a new one is allocated if null
+	 * @param timeout_ms
+	 *            maximum time to wait for the conversion
+	 * @return the filled holder
+	 * @throws IOException
+	 *             on bus error or if no conversion completed in time
+	 */
+	public TiINA219Snapshot readNextSnapshot(TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		TiINA219Snapshot snapshot = reuse;
+		if (snapshot == null) {
+			snapshot = new TiINA219Snapshot();
+		}
+
+		waitConversion(snapshot, now_us() + timeout_ms * 1000L);
+		return snapshot;
+	}
 
+	/**
+	 * Triggers a single shunt and bus conversion, waits for it and reads it,
+	 * then powers the device down until the next call. Between two calls the
+	 * device draws only its power-down current.
+	 * 
+	 * @param reuse
+	 *            holder to fill, a new one is allocated if null
+	 * @param timeout_ms
+	 *            maximum time to wait for the conversion
+	 * @return the filled holder
+	 * @throws IOException
+	 *             on bus error or if the conversion did not complete in time
+	 */
+	public TiINA219Snapshot readTriggered(TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		TiINA219Snapshot snapshot = reuse;
+		if (snapshot == null) {
+			snapshot = new TiINA219Snapshot();
+		}
+
+		// Writing the config register in triggered mode starts the conversion
+		setMode(INA219_CONFIG_MODE_SANDBVOLT_TRIGGERED);
+		ina219_lastConversion_us = now_us();
+
+		try {
+			waitConversion(snapshot, ina219_lastConversion_us + timeout_ms * 1000L);
+		} finally {
+			setMode(INA219_CONFIG_MODE_POWERDOWN);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Changes the operating mode, only the mode bits of the config register
+	 * are modified. Writing a triggered mode starts a conversion.
+	 * 
+	 * @param mode
+	 *            one of the INA219_CONFIG_MODE_* settings
+	 * @throws IOException
+	 */
+	public void setMode(int mode) throws IOException {
+		if ((mode & ~INA219_CONFIG_MODE_MASK) != 0) {
+			throw new IllegalArgumentException("Invalid mode " + mode);
+		}
+
+		modifyConfig(INA219_CONFIG_MODE_MASK, mode);
+	}
+
+	/**
+	 * Replaces some bits of the config register
+	 * 
+	 * @param mask
+	 *            bits to replace
+	 * @param bits
+	 *            new value of the bits
+	 * @return the previous config
+	 * @throws IOException
+	 */
+	int modifyConfig(int mask, int bits) throws IOException {
+		synchronized (bus) {
+			int previous = ina219_config < 0 ? TiINA219Register.INA219_CONFIG_RESET : ina219_config;
+			int config = (previous & ~mask) | (bits & mask);
+			wireWriteRegister(TiINA219Register.INA219_REG_CONFIG, config);
+			ina219_config = config;
+			return previous;
+		}
+	}
+
+	/**
+	 * Gets the operating mode
+	 * 
+	 * @return one of the INA219_CONFIG_MODE_* settings
+	 */
+	public int getMode() {
+		int config = ina219_config < 0 ? TiINA219Register.INA219_CONFIG_RESET : ina219_config;
+		return config & INA219_CONFIG_MODE_MASK;
+	}
+
+	/**
+	 * Waits for the CNVR flag and reads the conversion
+	 * 
+	 * @param snapshot
+	 *            holder to fill
+	 * @param deadline
+	 *            time limit in us
+	 * @throws IOException
+	 */
+	private void waitConversion(TiINA219Snapshot snapshot, long deadline) throws IOException {
+		long conversion_us = getConversionTime_us();
+
+		// The next conversion cannot be ready before this
+		sleep_us(ina219_lastConversion_us + conversion_us - now_us());
+
+		while (!readSnapshot(snapshot, true)) {
+			long now = now_us();
+			if (now >= deadline) {
+				throw new IOException("INA219 conversion timeout");
+			}
+			sleep_us(conversion_us / 8);
+		}
+
+		ina219_lastConversion_us = snapshot.timestamp_us;
+	}
+
+	/**
+	 * Reads all measurement registers under the bus lock
+	 * 
+	 * @param snapshot
+	 *            holder to fill
+	 * @param fresh
+	 *            only read if the CNVR flag is set
+	 * @return false if fresh was requested and no new conversion is available
+	 * @throws IOException
+	 */
+	boolean readSnapshot(TiINA219Snapshot snapshot, boolean fresh) throws IOException {
+		synchronized (bus) {
+			long timestamp = now_us();
+			int busRegister = wireReadRegister(TiINA219Register.INA219_REG_BUSVOLTAGE) & 0xffff;
+			if (fresh && (busRegister & TiINA219Register.INA219_BUSVOLTAGE_CNVR) == 0) {
+				return false;
+			}
+
+			snapshot.timestamp_us = timestamp;
+			snapshot.busRegister = busRegister;
+			snapshot.shuntRaw = wireReadRegister(TiINA219Register.INA219_REG_SHUNTVOLTAGE);
+			snapshot.currentRaw = getCurrent_raw();
+			snapshot.powerRaw = wireReadRegister(TiINA219Register.INA219_REG_POWER) & 0xffff;
+			snapshot.calibration = ina219_calibration;
+
+			if (ina219_previousCalibration != null) {
+				if ((busRegister & TiINA219Register.INA219_BUSVOLTAGE_CNVR) != 0) {
+					// First conversion with the new calibration
+					ina219_previousCalibration = null;
+				} else {
+					// CURRENT and POWER still hold values of the old one
+					snapshot.calibration = ina219_previousCalibration;
+				}
+			}
+		}
+
+		TiINA219AutoRange autoRange = ina219_autoRange;
+		if (autoRange != null && snapshot.calibration == ina219_calibration) {
+			autoRange.update(this, snapshot);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the time of one conversion cycle for the configured ADC settings
+	 * and operating mode
+	 * 
+	 * @return conversion time in us, 0 if the ADC is off
+	 */
+	public int getConversionTime_us() {
+		int config = ina219_config < 0 ? TiINA219Register.INA219_CONFIG_RESET : ina219_config;
+		return getConversionTime_us(config);
+	}
+
+	/**
+	 * Gets the time of one shunt and bus conversion as started by
+	 * readTriggered(), whatever the current operating mode
+	 * 
+	 * @return conversion time in us
+	 */
+	public int getTriggeredConversionTime_us() {
+		int config = ina219_config < 0 ? TiINA219Register.INA219_CONFIG_RESET : ina219_config;
+		return getConversionTime_us((config & ~INA219_CONFIG_MODE_MASK) | INA219_CONFIG_MODE_SANDBVOLT_TRIGGERED);
+	}
+
+	/**
+	 * Gets the time of one conversion cycle for a config register value
+	 * 
+	 * @param config
+	 *            CONFIG register value
+	 * @return conversion time in us, 0 if the ADC is off
+	 */
+	public static int getConversionTime_us(int config) {
+		int mode = config & INA219_CONFIG_MODE_MASK;
+		if (mode == INA219_CONFIG_MODE_POWERDOWN || mode == INA219_CONFIG_MODE_ADCOFF) {
+			return 0;
+		}
+
+		int time = 0;
+		if ((mode & INA219_CONFIG_MODE_SVOLT_TRIGGERED) != 0) {
+			time += CONVERSION_TIME_US[(config & INA219_CONFIG_SADCRES_MASK) >> 3];
+		}
+		if ((mode & INA219_CONFIG_MODE_BVOLT_TRIGGERED) != 0) {
+			time += CONVERSION_TIME_US[(config & INA219_CONFIG_BADCRES_MASK) >> 7];
+		}
+		return time;
+	}
+
+	/**
+	 * Sleeps for the given time, yields if it is below the 1ms resolution of
+	 * the scheduler
+	 * 
+	 * @param us
+	 *            time to sleep in us, nothing is done if not positive
+	 * @throws InterruptedIOException
+	 */
+	static void sleep_us(long us) throws InterruptedIOException {
+		if (us <= 0) {
+			return;
+		}
+
+		if (us < 1000) {
+			Thread.yield();
+			return;
+		}
+
+		try {
+			Thread.sleep(us / 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("INA219 wait interrupted");
+		}
+	}
+
+	/**
+	 * Sleeps after a failed read in a sampling loop, one conversion period
+	 * doubling with every consecutive error up to MAX_ERROR_BACKOFF_US, so an
+	 * unplugged device does not keep the bus busy
+	 * 
+	 * @param conversion_us
+	 *            conversion time of the device
+	 * @param errors
+	 *            consecutive errors, at least 1
+	 * @throws InterruptedIOException
+	 */
+	static void errorBackoff(int conversion_us, int errors) throws InterruptedIOException {
+		long us = Math.max(conversion_us, 100);
+		for (int i = 1; i < errors && us < MAX_ERROR_BACKOFF_US; i++) {
+			us <<= 1;
+		}
+		sleep_us(Math.min(us, MAX_ERROR_BACKOFF_US));
+	}
+	/**
+	 * Gets the calibration needed to convert CURRENT and POWER values
+	 * 
+	 * @return
+	 */
+	private TiINA219Calibration calibration() {
+		if (ina219_calibration == null) {
+			throw new IllegalStateException("INA219 is not calibrated");
+		}
+		return ina219_calibration;
+	}
+
+	/**
+	 * Time base of the driver
+	 * 
+	 * @return current time in microseconds
+	 */
+	static long now_us() {
+		return System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Reads a 16-bit register over I2C
+	 * 
+	 * @param register's
+	 *            address
+	 * @return register value as 16-bit signed integer
+	 */
+	private int wireReadRegister(int register) throws IOException {
+		// A reset moves the pointer to CONFIG, a bare read would hide it from
+		// the zero-read detection unless the periodic check finds it before
+		// the pointer is written again
+		boolean bare = true;
+		if (ina219_guardMode == CALIBRATION_GUARD_DETECT
+				&& (register == TiINA219Register.INA219_REG_CURRENT || register == TiINA219Register.INA219_REG_POWER)) {
+			bare = ina219_guardInterval > 0 && bus.getResyncInterval() <= ina219_guardInterval;
+		}
+		return bus.readRegister(this.i2cSlaveAddr, register, data, bare);
+	}
 
 	/**
 	 * Sends a single command byte over I2C
@@ -533,12 +1196,7 @@ public class TiINA219 {
 	 * @param value
 	 */
 	private void wireWriteRegister(int register, int value) throws IOException {
-		synchronized (this.i2cmObj) {
-			data[0] = (byte) (value >>> 8); // MSB 1st
-			data[1] = (byte) (value & 0xff); // LSB 2nd
-
-			i2cmObj.write(this.i2cSlaveAddr, register, data, 0, 2);
-		}
+		bus.writeRegister(this.i2cSlaveAddr, register, value, data);
 	}
 
 }
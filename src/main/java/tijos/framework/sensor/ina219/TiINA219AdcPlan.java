@@ -0,0 +1,230 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Chooses the ADC resolution and hardware averaging of the shunt and bus
+ * channels for a target sample rate, a noise budget per channel and the number
+ * of devices sharing the I2C bus, and reports the achievable throughput.
+ * 
+ * All combinations fitting in the sample period are evaluated and the one with
+ * the lowest estimated noise relative to the budgets is kept, so the time not
+ * needed for the rate is spent on free hardware averaging. The noise estimate
+ * is the quantization noise of the selected resolution, LSB / sqrt(12),
+ * reduced by sqrt(samples) for averaging.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219AdcPlan {
+
+	// Distinct settings of the 4-bit ADC field, fields 4..7 repeat 0..3
+	static final int[] ADC_FIELDS = { 0, 1, 2, 3, 8, 9, 10, 11, 12, 13, 14, 15 };
+
+	// I2C clocks of one register read: pointer write and 2-byte read with
+	// start, repeated start, stop and acknowledge bits
+	static final int CLOCKS_PER_READ = 48;
+
+	// Register reads per snapshot
+	static final int READS_PER_SAMPLE = 4;
+
+	private int shuntADC;
+	private int busADC;
+	private int conversionTime_us;
+	private int deviceRate_Hz;
+	private int busRate_Hz;
+	private double shuntNoise_uV;
+	private double busNoise_mV;
+	private boolean rateMet;
+	private boolean noiseMet;
+
+	private TiINA219AdcPlan() {
+	}
+
+	/**
+	 * Plans the ADC settings
+	 * 
+	 * @param sampleRate_Hz
+	 *            target samples per second of each device
+	 * @param shuntNoise_uV
+	 *            acceptable shunt voltage noise (RMS) in uV, 0 for no limit
+	 * @param busNoise_mV
+	 *            acceptable bus voltage noise (RMS) in mV, 0 for no limit
+	 * @param devices
+	 *            number of devices sampled on the same bus
+	 * @param i2cClock_Hz
+	 *            I2C bus clock, e.g. 100000 or 400000
+	 * @return the selected settings and the achievable rates
+	 */
+	public static TiINA219AdcPlan plan(int sampleRate_Hz, int shuntNoise_uV, int busNoise_mV, int devices,
+			int i2cClock_Hz) {
+		if (sampleRate_Hz <= 0) {
+			throw new IllegalArgumentException("Invalid sample rate " + sampleRate_Hz);
+		}
+		if (shuntNoise_uV < 0 || busNoise_mV < 0) {
+			throw new IllegalArgumentException("Invalid noise budget");
+		}
+		if (devices <= 0 || devices > TiINA219Array.DEVICE_COUNT) {
+			throw new IllegalArgumentException("Invalid device count " + devices);
+		}
+		if (i2cClock_Hz <= 0) {
+			throw new IllegalArgumentException("Invalid I2C clock " + i2cClock_Hz);
+		}
+
+		TiINA219AdcPlan plan = new TiINA219AdcPlan();
+		plan.busRate_Hz = i2cClock_Hz / (CLOCKS_PER_READ * READS_PER_SAMPLE * devices);
+
+		long period_us = 1000000L / sampleRate_Hz;
+		if (plan.busRate_Hz > 0 && plan.busRate_Hz < sampleRate_Hz) {
+			// The bus is the limit, use its period for averaging instead
+			period_us = 1000000L / plan.busRate_Hz;
+		}
+		double best = Double.MAX_VALUE;
+		int bestShunt = 0;
+		int bestBus = 0;
+		boolean found = false;
+
+		for (int s = 0; s < ADC_FIELDS.length; s++) {
+			for (int b = 0; b < ADC_FIELDS.length; b++) {
+				int time = TiINA219.CONVERSION_TIME_US[ADC_FIELDS[s]] + TiINA219.CONVERSION_TIME_US[ADC_FIELDS[b]];
+				if (time > period_us) {
+					continue;
+				}
+
+				double cost = relative(shuntNoise(ADC_FIELDS[s]), shuntNoise_uV)
+						+ relative(busNoise(ADC_FIELDS[b]), busNoise_mV);
+				if (cost < best) {
+					best = cost;
+					bestShunt = ADC_FIELDS[s];
+					bestBus = ADC_FIELDS[b];
+					found = true;
+				}
+			}
+		}
+
+		// Nothing fits in the period: the fastest setting gets closest
+		plan.rateMet = found;
+		plan.shuntADC = bestShunt << 3;
+		plan.busADC = bestBus << 7;
+		plan.conversionTime_us = TiINA219.CONVERSION_TIME_US[bestShunt] + TiINA219.CONVERSION_TIME_US[bestBus];
+		plan.shuntNoise_uV = shuntNoise(bestShunt);
+		plan.busNoise_mV = busNoise(bestBus);
+		plan.noiseMet = (shuntNoise_uV == 0 || plan.shuntNoise_uV <= shuntNoise_uV)
+				&& (busNoise_mV == 0 || plan.busNoise_mV <= busNoise_mV);
+
+		int adcRate = 1000000 / plan.conversionTime_us;
+		plan.deviceRate_Hz = adcRate < plan.busRate_Hz ? adcRate : plan.busRate_Hz;
+		if (plan.deviceRate_Hz < sampleRate_Hz) {
+			plan.rateMet = false;
+		}
+
+		return plan;
+	}
+
+	// Squared noise relative to the budget, plain noise without budget
+	private static double relative(double noise, int budget) {
+		if (budget == 0) {
+			return noise * 1e-6;
+		}
+		double r = noise / budget;
+		return r * r;
+	}
+
+	// Shunt LSB is 10uV at 12 bits
+	static double shuntNoise(int field) {
+		return 10.0 * lsbFactor(field) / Math.sqrt(12 * samples(field));
+	}
+
+	// Bus LSB is 4mV at 12 bits
+	static double busNoise(int field) {
+		return 4.0 * lsbFactor(field) / Math.sqrt(12 * samples(field));
+	}
+
+	private static int lsbFactor(int field) {
+		return (field & 8) != 0 ? 1 : 1 << (3 - (field & 3));
+	}
+
+	private static int samples(int field) {
+		return (field & 8) != 0 ? 1 << (field & 7) : 1;
+	}
+
+	/**
+	 * Gets the selected shunt ADC setting
+	 * 
+	 * @return one of the INA219_CONFIG_SADCRES_* settings
+	 */
+	public int getShuntADC() {
+		return shuntADC;
+	}
+
+	/**
+	 * Gets the selected bus ADC setting
+	 * 
+	 * @return a INA219_CONFIG_BADCRES_* bit pattern
+	 */
+	public int getBusADC() {
+		return busADC;
+	}
+
+	/**
+	 * Gets the conversion time of a shunt and bus cycle
+	 * 
+	 * @return time in us
+	 */
+	public int getConversionTime_us() {
+		return conversionTime_us;
+	}
+
+	/**
+	 * Gets the achievable samples per second of each device, limited by the
+	 * conversion time and the bus
+	 * 
+	 * @return
+	 */
+	public int getDeviceRate_Hz() {
+		return deviceRate_Hz;
+	}
+
+	/**
+	 * Gets the samples per second the bus can carry for each device
+	 * 
+	 * @return
+	 */
+	public int getBusRate_Hz() {
+		return busRate_Hz;
+	}
+
+	/**
+	 * Gets the estimated shunt voltage noise
+	 * 
+	 * @return RMS noise in uV
+	 */
+	public double getShuntNoise_uV() {
+		return shuntNoise_uV;
+	}
+
+	/**
+	 * Gets the estimated bus voltage noise
+	 * 
+	 * @return RMS noise in mV
+	 */
+	public double getBusNoise_mV() {
+		return busNoise_mV;
+	}
+
+	/**
+	 * Whether the target sample rate is achievable
+	 * 
+	 * @return
+	 */
+	public boolean isRateMet() {
+		return rateMet;
+	}
+
+	/**
+	 * Whether both noise budgets are met
+	 * 
+	 * @return
+	 */
+	public boolean isNoiseMet() {
+		return noiseMet;
+	}
+
+}
@@ -0,0 +1,271 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Software comparator evaluated in the sampling path. Rules compare raw
+ * channel values (see TiINA219Snapshot.getChannel_raw()) with thresholds,
+ * so no sample is converted just to check limits; use the toXxx_raw()
+ * methods of TiINA219Calibration to express thresholds in engineering units.
+ * 
+ * Each rule has a hysteresis band and a debounce count, the condition must
+ * hold for that many consecutive samples to trigger or clear. State changes
+ * are queued and the listener is called from a separate dispatch thread so a
+ * slow listener never delays sampling.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219AlertEngine implements TiINA219SampleListener, Runnable {
+
+	// Active while the value is above the threshold
+	public static final int ABOVE = 0;
+	// Active while the value is below the threshold
+	public static final int BELOW = 1;
+	// Active while the value changes faster than threshold raw units per
+	// second, in either direction
+	public static final int RATE = 2;
+
+	static final int MAX_RULES = 16;
+
+	private static final int CHANNELS = TiINA219Snapshot.CHANNEL_COUNT;
+
+	// Rules
+	private int ruleCount = 0;
+	private int[] channel = new int[MAX_RULES];
+	private int[] type = new int[MAX_RULES];
+	private int[] threshold = new int[MAX_RULES];
+	private int[] hysteresis = new int[MAX_RULES];
+	private int[] debounce = new int[MAX_RULES];
+	private boolean[] active = new boolean[MAX_RULES];
+	private int[] pending = new int[MAX_RULES];
+
+	// Previous sample for the rate rules
+	private boolean hasPrevious = false;
+	private int[] previous = new int[CHANNELS];
+	private long previousTimestamp_us;
+
+	// Queue of state changes, guarded by this
+	private int[] eventRule;
+	private boolean[] eventActive;
+	private int[] eventValue;
+	private long[] eventTimestamp;
+	private int eventHead = 0;
+	private int eventCount = 0;
+	private int dropped = 0;
+
+	private TiINA219AlertListener listener;
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Initialize the engine
+	 * 
+	 * @param listener
+	 *            receives the alerts
+	 * @param queueSize
+	 *            number of state changes that can wait for the listener
+	 */
+	public TiINA219AlertEngine(TiINA219AlertListener listener, int queueSize) {
+		if (queueSize <= 0) {
+			throw new IllegalArgumentException("Invalid queue size " + queueSize);
+		}
+
+		this.listener = listener;
+		eventRule = new int[queueSize];
+		eventActive = new boolean[queueSize];
+		eventValue = new int[queueSize];
+		eventTimestamp = new long[queueSize];
+	}
+
+	/**
+	 * Adds a rule
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @param type
+	 *            ABOVE, BELOW or RATE
+	 * @param threshold
+	 *            raw threshold, raw units per second for RATE
+	 * @param hysteresis
+	 *            distance below (ABOVE, RATE) or above (BELOW) the threshold
+	 *            the value must go back to clear the rule
+	 * @param debounce
+	 *            consecutive samples needed to trigger or clear, at least 1
+	 * @return rule id passed to the listener
+	 */
+	public synchronized int addRule(int channel, int type, int threshold, int hysteresis, int debounce) {
+		if (channel < 0 || channel >= CHANNELS) {
+			throw new IllegalArgumentException("Invalid channel " + channel);
+		}
+		if (type != ABOVE && type != BELOW && type != RATE) {
+			throw new IllegalArgumentException("Invalid rule type " + type);
+		}
+		if (hysteresis < 0 || debounce < 1) {
+			throw new IllegalArgumentException("Invalid hysteresis or debounce");
+		}
+		if (ruleCount == MAX_RULES) {
+			throw new IllegalStateException("Too many rules");
+		}
+
+		int rule = ruleCount;
+		this.channel[rule] = channel;
+		this.type[rule] = type;
+		this.threshold[rule] = threshold;
+		this.hysteresis[rule] = hysteresis;
+		this.debounce[rule] = debounce;
+		active[rule] = false;
+		pending[rule] = 0;
+		ruleCount++;
+		return rule;
+	}
+
+	/**
+	 * Whether a rule is currently active
+	 * 
+	 * @param rule
+	 *            rule id
+	 * @return
+	 */
+	public synchronized boolean isActive(int rule) {
+		return active[rule];
+	}
+
+	/**
+	 * Gets the number of state changes lost because the queue was full
+	 * 
+	 * @return
+	 */
+	public synchronized int getDroppedCount() {
+		return dropped;
+	}
+
+	public synchronized void onSample(TiINA219 sensor, TiINA219Snapshot snapshot) {
+		long timestamp = snapshot.getTimestamp_us();
+		long dt = timestamp - previousTimestamp_us;
+
+		for (int rule = 0; rule < ruleCount; rule++) {
+			int value = snapshot.getChannel_raw(channel[rule]);
+			boolean trigger;
+			boolean clear;
+
+			switch (type[rule]) {
+			case ABOVE:
+				trigger = value > threshold[rule];
+				clear = value < threshold[rule] - hysteresis[rule];
+				break;
+			case BELOW:
+				trigger = value < threshold[rule];
+				clear = value > threshold[rule] + hysteresis[rule];
+				break;
+			default:
+				if (!hasPrevious || dt <= 0) {
+					continue;
+				}
+				// |dv| / dt compared with the rate without dividing
+				long change = Math.abs((long) value - previous[channel[rule]]) * 1000000L;
+				trigger = change > (long) threshold[rule] * dt;
+				clear = change < ((long) threshold[rule] - hysteresis[rule]) * dt;
+				break;
+			}
+
+			boolean changing = active[rule] ? clear : trigger;
+			if (!changing) {
+				pending[rule] = 0;
+				continue;
+			}
+
+			if (++pending[rule] >= debounce[rule]) {
+				pending[rule] = 0;
+				active[rule] = !active[rule];
+				post(rule, active[rule], value, timestamp);
+			}
+		}
+
+		for (int ch = 0; ch < CHANNELS; ch++) {
+			previous[ch] = snapshot.getChannel_raw(ch);
+		}
+		previousTimestamp_us = timestamp;
+		hasPrevious = true;
+	}
+
+	private void post(int rule, boolean state, int value, long timestamp) {
+		if (eventCount == eventRule.length) {
+			dropped++;
+			return;
+		}
+
+		int tail = (eventHead + eventCount) % eventRule.length;
+		eventRule[tail] = rule;
+		eventActive[tail] = state;
+		eventValue[tail] = value;
+		eventTimestamp[tail] = timestamp;
+		eventCount++;
+		notifyAll();
+	}
+
+	/**
+	 * Starts the dispatch thread
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops the dispatch thread and waits for it to terminate, queued alerts
+	 * are kept
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Dispatch loop, calls the listener outside the lock
+	 */
+	public void run() {
+		while (true) {
+			int rule;
+			boolean state;
+			int value;
+			long timestamp;
+
+			synchronized (this) {
+				while (running && eventCount == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// stop() requested
+					}
+				}
+				if (!running) {
+					return;
+				}
+
+				rule = eventRule[eventHead];
+				state = eventActive[eventHead];
+				value = eventValue[eventHead];
+				timestamp = eventTimestamp[eventHead];
+				eventHead = (eventHead + 1) % eventRule.length;
+				eventCount--;
+			}
+
+			listener.onAlert(rule, state, value, timestamp);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Receives the alerts of a TiINA219AlertEngine
+ * 
+ * @author TiJOS
+ */
+public interface TiINA219AlertListener {
+
+	/**
+	 * Called from the dispatch thread of the engine when a rule becomes
+	 * active or clears
+	 * 
+	 * @param rule
+	 *            id returned by TiINA219AlertEngine.addRule()
+	 * @param active
+	 *            true when the rule triggered, false when it cleared
+	 * @param value
+	 *            raw channel value of the sample that changed the state
+	 * @param timestamp_us
+	 *            timestamp of that sample
+	 */
+	void onAlert(int rule, boolean active, int value, long timestamp_us);
+
+}
@@ -0,0 +1,344 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiI2CMaster;
+
+/**
+ * Scanner and poller for all INA219 devices on one I2C bus. The 16 documented
+ * addresses are probed, the devices found are calibrated and then polled
+ * round-robin by a single thread, each at its own period or by default once
+ * per conversion. The latest snapshot of every device is kept in a table
+ * indexed by address, and every conversion is published once.
+ * 
+ * One poller per bus instead of one thread per device saves thread stacks and
+ * keeps the bus transactions in order. Every device is read through its own
+ * TiINA219CircuitBreaker, so a failing device is retried a little and then
+ * skipped instead of stalling the others.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Array implements Runnable {
+
+	// Number of addresses an INA219 can be strapped to
+	public static final int DEVICE_COUNT = 16;
+
+	private TiINA219Bus bus;
+
+	// Devices indexed by address - INA219_ADDR_GG, null if not present
+	private TiINA219[] devices = new TiINA219[DEVICE_COUNT];
+	private TiINA219CircuitBreaker[] breakers = new TiINA219CircuitBreaker[DEVICE_COUNT];
+	private TiINA219Calibration[] calibrations = new TiINA219Calibration[DEVICE_COUNT];
+	private TiINA219Calibration defaultCalibration;
+
+	// Polling period of each device in ms and time of its next poll
+	private int[] period_ms = new int[DEVICE_COUNT];
+	private long[] nextPoll_ms = new long[DEVICE_COUNT];
+
+	// Latest snapshot of each device, guarded by the snapshot itself
+	private TiINA219Snapshot[] table = new TiINA219Snapshot[DEVICE_COUNT];
+	private boolean[] valid = new boolean[DEVICE_COUNT];
+	private int[] errors = new int[DEVICE_COUNT];
+
+	// Snapshot the poller reads into before publishing
+	private TiINA219Snapshot work = new TiINA219Snapshot();
+
+	private int deviceCount = 0;
+	private int next = 0;
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Initialize the array on an I2C master
+	 * 
+	 * @param i2c
+	 *            I2C master object for communication
+	 */
+	public TiINA219Array(TiI2CMaster i2c) {
+		this(TiINA219Bus.forMaster(i2c));
+	}
+
+	/**
+	 * Initialize the array on a bus arbiter
+	 * 
+	 * @param bus
+	 *            arbiter of the I2C master
+	 */
+	public TiINA219Array(TiINA219Bus bus) {
+		this.bus = bus;
+		for (int i = 0; i < DEVICE_COUNT; i++) {
+			table[i] = new TiINA219Snapshot();
+		}
+	}
+
+	/**
+	 * Sets the calibration applied by probe() to devices without their own
+	 * 
+	 * @param calibration
+	 */
+	public void setDefaultCalibration(TiINA219Calibration calibration) {
+		this.defaultCalibration = calibration;
+	}
+
+	/**
+	 * Sets the calibration applied by probe() to one device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param calibration
+	 */
+	public void setCalibration(int addr, TiINA219Calibration calibration) {
+		calibrations[index(addr)] = calibration;
+	}
+
+	/**
+	 * Sets the polling period of one device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param period
+	 *            period in ms, 0 to poll once per conversion
+	 */
+	public void setPeriod(int addr, int period) {
+		if (period < 0) {
+			throw new IllegalArgumentException("Invalid period " + period);
+		}
+		period_ms[index(addr)] = period;
+	}
+
+	/**
+	 * Probes the 16 INA219 addresses and calibrates the devices found. A
+	 * device without calibration (own or default) is left unconfigured and
+	 * only raw shunt and bus voltages are meaningful.
+	 * 
+	 * @return number of devices found
+	 * @throws IOException
+	 *             if a found device cannot be calibrated
+	 */
+	public int probe() throws IOException {
+		if (running) {
+			throw new IllegalStateException("Poller is running");
+		}
+
+		deviceCount = 0;
+		for (int i = 0; i < DEVICE_COUNT; i++) {
+			TiINA219 device = new TiINA219(bus, TiINA219.INA219_ADDR_GG + i);
+			valid[i] = false;
+			if (!device.probe()) {
+				devices[i] = null;
+				breakers[i] = null;
+				continue;
+			}
+
+			TiINA219Calibration calibration = calibrations[i] != null ? calibrations[i] : defaultCalibration;
+			if (calibration != null) {
+				// Devices still configured from before a restart are left alone
+				device.warmStart(calibration);
+			}
+
+			devices[i] = device;
+			breakers[i] = new TiINA219CircuitBreaker(device);
+			deviceCount++;
+		}
+		return deviceCount;
+	}
+
+	/**
+	 * Gets the number of devices found by probe()
+	 * 
+	 * @return
+	 */
+	public int getDeviceCount() {
+		return deviceCount;
+	}
+
+	/**
+	 * Gets the driver of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @return driver or null if the device was not found
+	 */
+	public TiINA219 getDevice(int addr) {
+		return devices[index(addr)];
+	}
+
+	/**
+	 * Gets the circuit breaker the poller reads a device through, to tune its
+	 * retries and trip thresholds
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @return breaker or null if the device was not found
+	 */
+	public TiINA219CircuitBreaker getBreaker(int addr) {
+		return breakers[index(addr)];
+	}
+
+	/**
+	 * Copies the latest snapshot of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param dst
+	 *            holder to fill
+	 * @return false if no sample has been read from the device yet
+	 */
+	public boolean getSnapshot(int addr, TiINA219Snapshot dst) {
+		int i = index(addr);
+		TiINA219Snapshot latest = table[i];
+		synchronized (latest) {
+			if (!valid[i]) {
+				return false;
+			}
+			dst.copyFrom(latest);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the number of failed polls of a device, including the polls
+	 * skipped while its circuit is open
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @return
+	 */
+	public int getErrorCount(int addr) {
+		return errors[index(addr)];
+	}
+
+	/**
+	 * Starts the polling thread
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < DEVICE_COUNT; i++) {
+			nextPoll_ms[i] = now;
+		}
+
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops the polling thread and waits for it to terminate
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	/**
+	 * Polling loop, each round polls every device that is due once, starting
+	 * after the device polled last so no device starves the others
+	 */
+	public void run() {
+		while (running) {
+			long now = System.currentTimeMillis();
+			long wakeup = Long.MAX_VALUE;
+
+			for (int n = 0; n < DEVICE_COUNT && running; n++) {
+				int i = next;
+				next = (next + 1) % DEVICE_COUNT;
+
+				if (devices[i] == null) {
+					continue;
+				}
+
+				if (nextPoll_ms[i] <= now) {
+					poll(i);
+
+					int period = period(i);
+					nextPoll_ms[i] += period;
+					if (nextPoll_ms[i] < now) {
+						// Behind schedule, do not try to catch up
+						nextPoll_ms[i] = now + period;
+					}
+
+					// No poll before the open circuit lets a trial through
+					long retry = breakers[i].getRetryTime();
+					if (nextPoll_ms[i] < retry) {
+						nextPoll_ms[i] = retry;
+					}
+				}
+
+				if (nextPoll_ms[i] < wakeup) {
+					wakeup = nextPoll_ms[i];
+				}
+			}
+
+			if (wakeup == Long.MAX_VALUE) {
+				// No device to poll
+				running = false;
+				break;
+			}
+
+			long delay = wakeup - System.currentTimeMillis();
+			if (delay > 0 && running) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					// stop() requested
+				}
+			}
+		}
+	}
+
+	private void poll(int i) {
+		try {
+			if (!breakers[i].readFreshSnapshot(work)) {
+				// Conversion already published
+				return;
+			}
+		} catch (IOException e) {
+			errors[i]++;
+			return;
+		}
+
+		TiINA219Snapshot latest = table[i];
+		synchronized (latest) {
+			latest.copyFrom(work);
+			valid[i] = true;
+		}
+	}
+
+	// Polling period in ms, the conversion time rounded up if not set
+	private int period(int i) {
+		if (period_ms[i] > 0) {
+			return period_ms[i];
+		}
+
+		int conversion_us = devices[i].getConversionTime_us();
+		if (conversion_us == 0) {
+			// ADC off or triggered, poll at the rate of a triggered conversion
+			conversion_us = devices[i].getTriggeredConversionTime_us();
+		}
+		return (conversion_us + 999) / 1000;
+	}
+
+	private static int index(int addr) {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		if (i < 0 || i >= DEVICE_COUNT) {
+			throw new IllegalArgumentException("Invalid INA219 address " + addr);
+		}
+		return i;
+	}
+
+}
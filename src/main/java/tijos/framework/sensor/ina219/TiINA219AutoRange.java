@@ -0,0 +1,135 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+/**
+ * Automatic PGA gain selection. After every snapshot the shunt voltage is
+ * compared with the full scale of the current range: on overflow the largest
+ * range is selected, above the upper threshold the next range is selected, and
+ * after holdCount samples below the lower threshold of the next smaller range
+ * the gain steps down. The thresholds leave a hysteresis band so the gain does
+ * not oscillate.
+ * 
+ * Each range has its own calibration with the finest current LSB covering its
+ * full scale, so stepping down also improves the CURRENT and POWER
+ * resolution. Only the registers whose value changes are written.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219AutoRange {
+
+	private static final int RANGES = TiINA219Calibration.SHUNT_FULLSCALE_UV.length;
+
+	// Calibration for each PGA range, index is gain >> 11
+	private TiINA219Calibration[] calibrations = new TiINA219Calibration[RANGES];
+
+	private int upPercent = 90;
+	private int downPercent = 40;
+	private int holdCount = 8;
+
+	// Consecutive samples below the lower threshold
+	private int below = 0;
+
+	/**
+	 * Initialize the auto-ranging for a shunt resistor
+	 * 
+	 * @param shunt_uOhm
+	 *            shunt resistance in micro-ohm
+	 * @param busRange
+	 *            INA219_CONFIG_BVOLTAGERANGE_16V or _32V
+	 * @param busADC
+	 *            one of the INA219_CONFIG_BADCRES_* settings
+	 * @param shuntADC
+	 *            one of the INA219_CONFIG_SADCRES_* settings
+	 */
+	public TiINA219AutoRange(int shunt_uOhm, int busRange, int busADC, int shuntADC) {
+		if (shunt_uOhm <= 0) {
+			throw new IllegalArgumentException("Invalid shunt resistance " + shunt_uOhm);
+		}
+
+		for (int i = 0; i < RANGES; i++) {
+			// Largest current measurable in this range
+			int maxCurrent_mA = (int) ((long) TiINA219Calibration.SHUNT_FULLSCALE_UV[i] * 1000 / shunt_uOhm);
+			calibrations[i] = new TiINA219Calibration(shunt_uOhm, maxCurrent_mA, busRange, busADC, shuntADC);
+		}
+	}
+
+	/**
+	 * Sets the switching thresholds
+	 * 
+	 * @param upPercent
+	 *            step up above this percentage of the current full scale
+	 * @param downPercent
+	 *            step down below this percentage of the next smaller full
+	 *            scale, must be less than upPercent
+	 * @param holdCount
+	 *            number of consecutive samples required to step down
+	 */
+	public synchronized void setThresholds(int upPercent, int downPercent, int holdCount) {
+		if (upPercent <= 0 || upPercent > 100 || downPercent <= 0 || downPercent >= upPercent) {
+			throw new IllegalArgumentException("Invalid thresholds " + upPercent + "/" + downPercent);
+		}
+		if (holdCount <= 0) {
+			throw new IllegalArgumentException("Invalid hold count " + holdCount);
+		}
+
+		this.upPercent = upPercent;
+		this.downPercent = downPercent;
+		this.holdCount = holdCount;
+	}
+
+	/**
+	 * Gets the calibration used for a PGA range
+	 * 
+	 * @param gain
+	 *            one of the INA219_CONFIG_GAIN_* settings
+	 * @return
+	 */
+	public TiINA219Calibration getCalibration(int gain) {
+		return calibrations[(gain & TiINA219.INA219_CONFIG_GAIN_MASK) >> 11];
+	}
+
+	/**
+	 * Evaluates a snapshot and switches the range of the device if needed
+	 * 
+	 * @param sensor
+	 *            device the snapshot was read from
+	 * @param snapshot
+	 *            latest readings
+	 * @return true if the range was changed
+	 * @throws IOException
+	 */
+	synchronized boolean update(TiINA219 sensor, TiINA219Snapshot snapshot) throws IOException {
+		TiINA219Calibration calibration = snapshot.calibration;
+		if (calibration == null) {
+			return false;
+		}
+
+		int range = calibration.getGain() >> 11;
+		int shunt_uV = Math.abs(snapshot.getShuntVoltage_uV());
+
+		int target = range;
+		if (snapshot.isOverflow()) {
+			// The magnitude is unknown, go to the widest range
+			target = RANGES - 1;
+		} else if (shunt_uV >= (long) TiINA219Calibration.SHUNT_FULLSCALE_UV[range] * upPercent / 100) {
+			target = range < RANGES - 1 ? range + 1 : range;
+		} else if (range > 0
+				&& shunt_uV < (long) TiINA219Calibration.SHUNT_FULLSCALE_UV[range - 1] * downPercent / 100) {
+			if (++below >= holdCount) {
+				target = range - 1;
+			}
+		} else {
+			below = 0;
+		}
+
+		if (target == range) {
+			return false;
+		}
+
+		below = 0;
+		sensor.updateCalibration(calibrations[target]);
+		return true;
+	}
+
+}
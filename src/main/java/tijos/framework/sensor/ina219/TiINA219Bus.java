@@ -0,0 +1,349 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiI2CMaster;
+
+/**
+ * Arbiter for the INA219 devices sharing one bus. Every register transaction
+ * is serialized on the bus object, and a driver holding the bus monitor
+ * (synchronized (bus)) runs a compound operation atomically. Devices on
+ * different buses use different arbiters and never block each other.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Bus {
+
+	// One arbiter per transport
+	private static TiINA219Bus[] buses = new TiINA219Bus[2];
+	private static int busCount = 0;
+
+	/**
+	 * Transport to the devices
+	 */
+	private TiINA219Transport transport;
+
+	/**
+	 * Optional metrics of all traffic and of each device
+	 */
+	private TiINA219Metrics metrics;
+	private TiINA219Metrics[] deviceMetrics = new TiINA219Metrics[TiINA219Array.DEVICE_COUNT];
+
+	/**
+	 * Register pointer of each device as last written, -1 if unknown, and the
+	 * number of bare reads since it was last written
+	 */
+	private int[] pointer = new int[TiINA219Array.DEVICE_COUNT];
+	private int[] bareReads = new int[TiINA219Array.DEVICE_COUNT];
+	private int resyncInterval = DEFAULT_RESYNC_INTERVAL;
+
+	/**
+	 * Pointer tracking is disabled by default, see setPointerTracking()
+	 */
+	public static final int DEFAULT_RESYNC_INTERVAL = 0;
+
+	/**
+	 * Gets the arbiter of an I2C master, creating it on first use
+	 * 
+	 * @param i2c
+	 *            I2C master object for communication
+	 * @return the arbiter shared by all devices on this master
+	 */
+	public static synchronized TiINA219Bus forMaster(TiI2CMaster i2c) {
+		for (int i = 0; i < busCount; i++) {
+			TiINA219Transport transport = buses[i].transport;
+			if (transport instanceof TiI2CMasterTransport && ((TiI2CMasterTransport) transport).getMaster() == i2c) {
+				return buses[i];
+			}
+		}
+
+		return register(new TiINA219Bus(new TiI2CMasterTransport(i2c)));
+	}
+
+	/**
+	 * Gets the arbiter of a transport, creating it on first use
+	 * 
+	 * @param transport
+	 *            transport to the devices, e.g. a TiINA219Simulator
+	 * @return the arbiter shared by all devices on this transport
+	 */
+	public static synchronized TiINA219Bus forTransport(TiINA219Transport transport) {
+		for (int i = 0; i < busCount; i++) {
+			if (buses[i].transport == transport) {
+				return buses[i];
+			}
+		}
+
+		return register(new TiINA219Bus(transport));
+	}
+
+	private static TiINA219Bus register(TiINA219Bus bus) {
+		if (busCount == buses.length) {
+			TiINA219Bus[] grown = new TiINA219Bus[busCount * 2];
+			System.arraycopy(buses, 0, grown, 0, busCount);
+			buses = grown;
+		}
+
+		buses[busCount++] = bus;
+		return bus;
+	}
+
+	private TiINA219Bus(TiINA219Transport transport) {
+		this.transport = transport;
+		for (int i = 0; i < pointer.length; i++) {
+			pointer[i] = -1;
+		}
+	}
+
+	/**
+	 * Gets the transport of this bus
+	 * 
+	 * @return
+	 */
+	public TiINA219Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the metrics updated by every transaction on this bus
+	 * 
+	 * @param metrics
+	 *            metrics, or null to disable
+	 */
+	public synchronized void setMetrics(TiINA219Metrics metrics) {
+		if (metrics != null) {
+			metrics.attach(this);
+		}
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the metrics of this bus
+	 * 
+	 * @return metrics, or null if disabled
+	 */
+	public TiINA219Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics updated by the transactions with one device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param metrics
+	 *            metrics, or null to disable
+	 */
+	public synchronized void setDeviceMetrics(int addr, TiINA219Metrics metrics) {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		if (i < 0 || i >= deviceMetrics.length) {
+			throw new IllegalArgumentException("Invalid INA219 address " + addr);
+		}
+
+		if (metrics != null) {
+			metrics.attach(this);
+		}
+		deviceMetrics[i] = metrics;
+	}
+
+	/**
+	 * Gets the metrics of one device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @return metrics, or null if disabled
+	 */
+	public synchronized TiINA219Metrics getDeviceMetrics(int addr) {
+		return deviceMetrics(addr);
+	}
+
+	/**
+	 * Sets how register pointers are tracked. The INA219 keeps its register
+	 * pointer, so reading the same register again only needs a bare read
+	 * transaction, 1 byte shorter on the bus. A chip reset moves the pointer
+	 * back to CONFIG without the driver knowing: until the pointer is written
+	 * again, after resyncInterval bare reads, the CONFIG value is returned as
+	 * the measurement. Only enable it for high-rate single register streams
+	 * that can tolerate this. CURRENT and POWER are only read bare when the
+	 * device checks its calibration periodically at least as often as the
+	 * pointer is written, see TiINA219.setCalibrationGuard(); a reset would
+	 * otherwise be hidden from the zero-read detection.
+	 * 
+	 * @param resyncInterval
+	 *            bare reads between two pointer writes, 0 to always write the
+	 *            pointer
+	 */
+	public synchronized void setPointerTracking(int resyncInterval) {
+		if (resyncInterval < 0) {
+			throw new IllegalArgumentException("Invalid resync interval " + resyncInterval);
+		}
+
+		this.resyncInterval = resyncInterval;
+		for (int i = 0; i < pointer.length; i++) {
+			pointer[i] = -1;
+		}
+	}
+
+	/**
+	 * Gets the number of bare reads between two pointer writes
+	 * 
+	 * @return 0 if pointer tracking is off
+	 */
+	public synchronized int getResyncInterval() {
+		return resyncInterval;
+	}
+
+	/**
+	 * Reads a 16-bit register of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @param buf
+	 *            buffer of the calling device, at least 2 bytes
+	 * @return register value as 16-bit signed integer
+	 * @throws IOException
+	 */
+	public synchronized int readRegister(int addr, int register, byte[] buf) throws IOException {
+		return readRegister(addr, register, buf, true);
+	}
+
+	/**
+	 * Reads a 16-bit register of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @param buf
+	 *            buffer of the calling device, at least 2 bytes
+	 * @param bare
+	 *            false to always write the register pointer
+	 * @return register value as 16-bit signed integer
+	 * @throws IOException
+	 */
+	synchronized int readRegister(int addr, int register, byte[] buf, boolean bare) throws IOException {
+		if (metrics == null && deviceMetrics(addr) == null) {
+			transfer(addr, register, buf, bare);
+		} else {
+			long start = System.nanoTime();
+			try {
+				transfer(addr, register, buf, bare);
+			} catch (IOException ex) {
+				recordError(addr);
+				throw ex;
+			}
+			recordTransaction(addr, register, false, System.nanoTime() - start);
+		}
+		return (short) (((buf[0] & 0xff) << 8) | (buf[1] & 0xff));
+	}
+
+	/**
+	 * Writes a 16-bit register of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @param value
+	 *            16-bit value
+	 * @param buf
+	 *            buffer of the calling device, at least 2 bytes
+	 * @throws IOException
+	 */
+	public synchronized void writeRegister(int addr, int register, int value, byte[] buf) throws IOException {
+		invalidate(addr);
+
+		buf[0] = (byte) (value >>> 8); // MSB 1st
+		buf[1] = (byte) (value & 0xff); // LSB 2nd
+
+		if (metrics == null && deviceMetrics(addr) == null) {
+			transport.write(addr, register, buf, 0, 2);
+		} else {
+			long start = System.nanoTime();
+			try {
+				transport.write(addr, register, buf, 0, 2);
+			} catch (IOException ex) {
+				recordError(addr);
+				throw ex;
+			}
+			recordTransaction(addr, register, true, System.nanoTime() - start);
+		}
+	}
+
+	// Reads 2 bytes, writing the register pointer only when it has changed
+	private void transfer(int addr, int register, byte[] buf, boolean bare) throws IOException {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		if (i < 0 || i >= pointer.length) {
+			transport.read(addr, register, buf, 0, 2);
+			return;
+		}
+
+		try {
+			if (bare && pointer[i] == register && bareReads[i] < resyncInterval) {
+				bareReads[i]++;
+				transport.read(addr, buf, 0, 2);
+			} else {
+				pointer[i] = -1;
+				transport.read(addr, register, buf, 0, 2);
+				pointer[i] = register;
+				bareReads[i] = 0;
+			}
+		} catch (IOException ex) {
+			// The pointer state of a failed transaction is unknown
+			pointer[i] = -1;
+			throw ex;
+		}
+	}
+
+	private void invalidate(int addr) {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		if (i >= 0 && i < pointer.length) {
+			pointer[i] = -1;
+		}
+	}
+
+	/**
+	 * Counts a calibration lost by a device and written again, called with
+	 * the bus monitor held
+	 * 
+	 * @param addr
+	 *            slave address
+	 */
+	void recordCalibrationRewrite(int addr) {
+		TiINA219Metrics device = deviceMetrics(addr);
+		if (metrics != null) {
+			metrics.recordCalibrationRewrite();
+		}
+		if (device != null) {
+			device.recordCalibrationRewrite();
+		}
+	}
+
+	private void recordTransaction(int addr, int register, boolean write, long latency_ns) {
+		TiINA219Metrics device = deviceMetrics(addr);
+		if (metrics != null) {
+			metrics.recordTransaction(register, write, latency_ns);
+		}
+		if (device != null) {
+			device.recordTransaction(register, write, latency_ns);
+		}
+	}
+
+	private void recordError(int addr) {
+		TiINA219Metrics device = deviceMetrics(addr);
+		if (metrics != null) {
+			metrics.recordError();
+		}
+		if (device != null) {
+			device.recordError();
+		}
+	}
+
+	private TiINA219Metrics deviceMetrics(int addr) {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		return i >= 0 && i < deviceMetrics.length ? deviceMetrics[i] : null;
+	}
+
+}
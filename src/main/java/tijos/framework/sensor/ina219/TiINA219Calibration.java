@@ -0,0 +1,321 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * INA219 calibration profile: calibration register value, current and power
+ * LSBs, PGA gain and ADC settings for a given shunt resistor.
+ * 
+ * The calculation follows the datasheet:
+ * 
+ * Cal = trunc(0.04096 / (Current_LSB * RSHUNT)), PowerLSB = 20 * CurrentLSB
+ * 
+ * The fixed-point scale factors are computed once here so converting a raw
+ * register value to engineering units is a multiply and a shift.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Calibration {
+
+	// Fractional bits of the fixed-point scale factors
+	static final int SCALE_SHIFT = 16;
+
+	// Shunt full scale in uV for each PGA gain setting, index is gain >> 11
+	static final int[] SHUNT_FULLSCALE_UV = { 40000, 80000, 160000, 320000 };
+
+	// Largest calibration value, bit 0 of the register is not used
+	static final int CAL_MAX = 0xfffe;
+
+	// Cal * CurrentLSB(uA) * RSHUNT(uOhm) = 0.04096 * 10^12
+	static final double CAL_FACTOR = 4.096e10;
+
+	int shunt_uOhm;
+	int calValue;
+	int config;
+
+	// Current LSB in uA and mA
+	double currentLSB_uA;
+	double currentLSB_mA;
+
+	// Current in uA and power in uW per LSB, in SCALE_SHIFT fixed point
+	long currentScale_uA;
+	long powerScale_uW;
+
+	/**
+	 * Computes the calibration giving the finest current resolution for the
+	 * expected load. The smallest PGA gain range covering the maximum shunt
+	 * voltage is selected and the current LSB is the smallest one allowing
+	 * maxCurrent_mA to be represented in the 15-bit CURRENT register.
+	 * 
+	 * @param shunt_uOhm
+	 *            shunt resistance in micro-ohm, e.g. 100000 for 0.1 ohm
+	 * @param maxCurrent_mA
+	 *            maximum expected current in mA
+	 * @param busRange
+	 *            INA219_CONFIG_BVOLTAGERANGE_16V or _32V
+	 * @param busADC
+	 *            one of the INA219_CONFIG_BADCRES_* settings
+	 * @param shuntADC
+	 *            one of the INA219_CONFIG_SADCRES_* settings
+	 */
+	public TiINA219Calibration(int shunt_uOhm, int maxCurrent_mA, int busRange, int busADC, int shuntADC) {
+		if (shunt_uOhm <= 0) {
+			throw new IllegalArgumentException("Invalid shunt resistance " + shunt_uOhm);
+		}
+		if (maxCurrent_mA <= 0) {
+			throw new IllegalArgumentException("Invalid maximum current " + maxCurrent_mA);
+		}
+
+		// 1. Select the PGA range covering the maximum shunt voltage
+		long maxShunt_uV = (long) maxCurrent_mA * shunt_uOhm / 1000;
+		int gain = -1;
+		for (int i = 0; i < SHUNT_FULLSCALE_UV.length; i++) {
+			if (maxShunt_uV <= SHUNT_FULLSCALE_UV[i]) {
+				gain = i << 11;
+				break;
+			}
+		}
+		if (gain < 0) {
+			throw new IllegalArgumentException("Shunt voltage " + maxShunt_uV + "uV exceeds 320mV range");
+		}
+
+		// 2. Minimum LSB so that the expected current fits in 15 bits
+		double minimumLSB_uA = maxCurrent_mA * 1000.0 / 32767;
+
+		// 3. Largest Cal for this LSB, truncation keeps the LSB above minimum
+		double cal = CAL_FACTOR / (minimumLSB_uA * shunt_uOhm);
+		int calValue = cal >= CAL_MAX ? CAL_MAX : ((int) cal) & CAL_MAX;
+
+		init(shunt_uOhm, calValue, buildConfig(busRange, gain, busADC, shuntADC));
+	}
+
+	private TiINA219Calibration() {
+	}
+
+	/**
+	 * Creates a calibration with an explicitly chosen current LSB and gain,
+	 * as done by the TiINA219.setCalibration_* profiles
+	 * 
+	 * @param shunt_uOhm
+	 *            shunt resistance in micro-ohm
+	 * @param currentLSB_uA
+	 *            current LSB in uA
+	 * @param busRange
+	 *            INA219_CONFIG_BVOLTAGERANGE_16V or _32V
+	 * @param gain
+	 *            one of the INA219_CONFIG_GAIN_* settings
+	 * @param busADC
+	 *            one of the INA219_CONFIG_BADCRES_* settings
+	 * @param shuntADC
+	 *            one of the INA219_CONFIG_SADCRES_* settings
+	 * @return
+	 */
+	public static TiINA219Calibration withCurrentLSB(int shunt_uOhm, int currentLSB_uA, int busRange, int gain,
+			int busADC, int shuntADC) {
+		if (shunt_uOhm <= 0) {
+			throw new IllegalArgumentException("Invalid shunt resistance " + shunt_uOhm);
+		}
+		if (currentLSB_uA <= 0) {
+			throw new IllegalArgumentException("Invalid current LSB " + currentLSB_uA);
+		}
+
+		double cal = CAL_FACTOR / ((double) currentLSB_uA * shunt_uOhm);
+		if (cal < 2 || cal > CAL_MAX) {
+			throw new IllegalArgumentException("Calibration value out of range " + cal);
+		}
+
+		TiINA219Calibration calibration = new TiINA219Calibration();
+		calibration.init(shunt_uOhm, ((int) cal) & CAL_MAX, buildConfig(busRange, gain, busADC, shuntADC));
+		return calibration;
+	}
+
+	/**
+	 * Rebuilds a calibration from register values, e.g. read back from a
+	 * device or from a log
+	 * 
+	 * @param shunt_uOhm
+	 *            shunt resistance in micro-ohm
+	 * @param calValue
+	 *            CALIBRATION register value
+	 * @param config
+	 *            CONFIG register value
+	 * @return
+	 */
+	public static TiINA219Calibration fromRegisters(int shunt_uOhm, int calValue, int config) {
+		if (shunt_uOhm <= 0) {
+			throw new IllegalArgumentException("Invalid shunt resistance " + shunt_uOhm);
+		}
+
+		TiINA219Calibration calibration = new TiINA219Calibration();
+		calibration.init(shunt_uOhm, calValue & CAL_MAX, config & 0xffff);
+		return calibration;
+	}
+
+	private static int buildConfig(int busRange, int gain, int busADC, int shuntADC) {
+		if ((busRange & ~TiINA219.INA219_CONFIG_BVOLTAGERANGE_MASK) != 0) {
+			throw new IllegalArgumentException("Invalid bus voltage range " + busRange);
+		}
+		if ((gain & ~TiINA219.INA219_CONFIG_GAIN_MASK) != 0) {
+			throw new IllegalArgumentException("Invalid gain " + gain);
+		}
+		if ((busADC & ~TiINA219.INA219_CONFIG_BADCRES_MASK) != 0) {
+			throw new IllegalArgumentException("Invalid bus ADC setting " + busADC);
+		}
+		if ((shuntADC & ~TiINA219.INA219_CONFIG_SADCRES_MASK) != 0) {
+			throw new IllegalArgumentException("Invalid shunt ADC setting " + shuntADC);
+		}
+
+		return busRange | gain | busADC | shuntADC | TiINA219.INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS;
+	}
+
+	private void init(int shunt_uOhm, int calValue, int config) {
+		if (calValue < 2) {
+			throw new IllegalArgumentException("Calibration value out of range " + calValue);
+		}
+
+		this.shunt_uOhm = shunt_uOhm;
+		this.calValue = calValue;
+		this.config = config;
+
+		// The effective LSB follows from the truncated Cal value
+		this.currentLSB_uA = CAL_FACTOR / ((double) calValue * shunt_uOhm);
+		this.currentLSB_mA = currentLSB_uA / 1000;
+		this.currentScale_uA = Math.round(currentLSB_uA * (1 << SCALE_SHIFT));
+		this.powerScale_uW = Math.round(20 * currentLSB_uA * (1 << SCALE_SHIFT));
+	}
+
+	/**
+	 * Gets the shunt resistance
+	 * 
+	 * @return shunt resistance in micro-ohm
+	 */
+	public int getShunt_uOhm() {
+		return shunt_uOhm;
+	}
+
+	/**
+	 * Gets the value for the CALIBRATION register
+	 * 
+	 * @return
+	 */
+	public int getCalValue() {
+		return calValue;
+	}
+
+	/**
+	 * Gets the value for the CONFIG register, in continuous shunt and bus mode
+	 * 
+	 * @return
+	 */
+	public int getConfig() {
+		return config;
+	}
+
+	/**
+	 * Gets the selected PGA gain
+	 * 
+	 * @return one of the INA219_CONFIG_GAIN_* settings
+	 */
+	public int getGain() {
+		return config & TiINA219.INA219_CONFIG_GAIN_MASK;
+	}
+
+	/**
+	 * Gets the current LSB
+	 * 
+	 * @return current per bit in uA
+	 */
+	public double getCurrentLSB_uA() {
+		return currentLSB_uA;
+	}
+
+	/**
+	 * Gets the power LSB
+	 * 
+	 * @return power per bit in uW
+	 */
+	public double getPowerLSB_uW() {
+		return 20 * currentLSB_uA;
+	}
+
+	/**
+	 * Gets the largest current before the CURRENT register or the shunt ADC
+	 * overflows
+	 * 
+	 * @return current in mA
+	 */
+	public double getMaxCurrent_mA() {
+		double maxRegister = currentLSB_mA * 32767;
+		double maxShunt = SHUNT_FULLSCALE_UV[getGain() >> 11] * 1000.0 / shunt_uOhm;
+		return maxRegister < maxShunt ? maxRegister : maxShunt;
+	}
+
+	/**
+	 * Converts a raw CURRENT register value
+	 * 
+	 * @param raw
+	 *            signed CURRENT register value
+	 * @return current in uA
+	 */
+	public int toCurrent_uA(int raw) {
+		return (int) ((raw * currentScale_uA + (1 << (SCALE_SHIFT - 1))) >> SCALE_SHIFT);
+	}
+
+	/**
+	 * Converts a raw POWER register value
+	 * 
+	 * @param raw
+	 *            unsigned POWER register value
+	 * @return power in uW
+	 */
+	public long toPower_uW(int raw) {
+		return (raw * powerScale_uW + (1 << (SCALE_SHIFT - 1))) >> SCALE_SHIFT;
+	}
+
+	/**
+	 * Converts a raw CURRENT register value
+	 * 
+	 * @param raw
+	 *            signed CURRENT register value
+	 * @return current in mA
+	 */
+	public double toCurrent_mA(int raw) {
+		return toCurrent_uA(raw) * 0.001;
+	}
+
+	/**
+	 * Converts a raw POWER register value
+	 * 
+	 * @param raw
+	 *            unsigned POWER register value
+	 * @return power in mW
+	 */
+	public double toPower_mW(int raw) {
+		return toPower_uW(raw) * 0.001;
+	}
+
+	/**
+	 * Converts a current to the raw CURRENT register value, e.g. for alert
+	 * thresholds
+	 * 
+	 * @param current_uA
+	 *            current in uA
+	 * @return raw value, saturated to the 16-bit signed range
+	 */
+	public int toCurrent_raw(int current_uA) {
+		long raw = ((long) current_uA << SCALE_SHIFT) / currentScale_uA;
+		return (int) (raw > 32767 ? 32767 : raw < -32768 ? -32768 : raw);
+	}
+
+	/**
+	 * Converts a power to the raw POWER register value, e.g. for alert
+	 * thresholds
+	 * 
+	 * @param power_uW
+	 *            power in uW
+	 * @return raw value, saturated to the 16-bit unsigned range
+	 */
+	public int toPower_raw(long power_uW) {
+		long raw = (power_uW << SCALE_SHIFT) / powerScale_uW;
+		return (int) (raw > 65535 ? 65535 : raw < 0 ? 0 : raw);
+	}
+
+}
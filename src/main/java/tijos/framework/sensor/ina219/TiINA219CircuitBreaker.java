@@ -0,0 +1,387 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Fault-tolerant reads of one device: bounded retries with a jittered
+ * exponential backoff, reinitialisation of calibration and config after
+ * repeated failures, and a circuit breaker.
+ * 
+ * After tripThreshold consecutive failed reads the circuit opens and reads fail
+ * at once without touching the bus, so a dead or unplugged device does not
+ * take bus time from the healthy ones. Once openTime_ms has elapsed one trial
+ * read is let through (half open), preceded by a reinitialisation since the
+ * device has probably been power cycled; success closes the circuit, failure
+ * opens it again. Reads from other threads are rejected during the trial.
+ * 
+ * The backoff sleeps without holding the bus or the breaker, other devices
+ * keep working and the state can be queried meanwhile.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219CircuitBreaker {
+
+	public static final int STATE_CLOSED = 0;
+	public static final int STATE_OPEN = 1;
+	public static final int STATE_HALF_OPEN = 2;
+
+	// Read operations
+	private static final int OP_SNAPSHOT = 0;
+	private static final int OP_NEXT_SNAPSHOT = 1;
+	private static final int OP_TRIGGERED = 2;
+	private static final int OP_FRESH_SNAPSHOT = 3;
+
+	private TiINA219 sensor;
+
+	private int retries = 2;
+	private int backoff_ms = 2;
+	private int maxBackoff_ms = 20;
+	private int reinitThreshold = 3;
+	private int tripThreshold = 5;
+	private int openTime_ms = 5000;
+
+	private int state = STATE_CLOSED;
+	private long openUntil_ms;
+	private int consecutiveFailures = 0;
+
+	private int retryCount = 0;
+	private int failureCount = 0;
+	private int reinitCount = 0;
+	private int tripCount = 0;
+	private int rejectCount = 0;
+
+	// xorshift state for the jitter
+	private int seed;
+
+	/**
+	 * Initialize the breaker of a device
+	 * 
+	 * @param sensor
+	 *            device to protect
+	 */
+	public TiINA219CircuitBreaker(TiINA219 sensor) {
+		this.sensor = sensor;
+		this.seed = (int) System.nanoTime() ^ (sensor.i2cSlaveAddr << 16) | 1;
+	}
+
+	/**
+	 * Gets the protected device
+	 * 
+	 * @return
+	 */
+	public TiINA219 getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * Sets the retries of one read, the n-th retry waits a random time between
+	 * half and all of min(backoff * 2^(n-1), maxBackoff)
+	 * 
+	 * @param retries
+	 *            retries after the first attempt
+	 * @param backoff
+	 *            first backoff in ms
+	 * @param maxBackoff
+	 *            largest backoff in ms
+	 */
+	public synchronized void setRetry(int retries, int backoff, int maxBackoff) {
+		if (retries < 0 || backoff < 0 || maxBackoff < backoff) {
+			throw new IllegalArgumentException("Invalid retry " + retries + " " + backoff + " " + maxBackoff);
+		}
+
+		this.retries = retries;
+		this.backoff_ms = backoff;
+		this.maxBackoff_ms = maxBackoff;
+	}
+
+	/**
+	 * Sets the number of consecutive failed reads after which calibration and
+	 * config are written again
+	 * 
+	 * @param failures
+	 *            failed reads, 0 to never reinitialise
+	 */
+	public synchronized void setReinitThreshold(int failures) {
+		if (failures < 0) {
+			throw new IllegalArgumentException("Invalid threshold " + failures);
+		}
+		this.reinitThreshold = failures;
+	}
+
+	/**
+	 * Sets when the circuit opens and how long it stays open
+	 * 
+	 * @param failures
+	 *            consecutive failed reads that open the circuit
+	 * @param openTime
+	 *            time in ms before a trial read
+	 */
+	public synchronized void setTrip(int failures, int openTime) {
+		if (failures < 1 || openTime < 0) {
+			throw new IllegalArgumentException("Invalid trip " + failures + " " + openTime);
+		}
+
+		this.tripThreshold = failures;
+		this.openTime_ms = openTime;
+	}
+
+	/**
+	 * Gets the circuit state
+	 * 
+	 * @return STATE_CLOSED, STATE_OPEN or STATE_HALF_OPEN
+	 */
+	public synchronized int getState() {
+		if (state == STATE_OPEN && System.currentTimeMillis() >= openUntil_ms) {
+			return STATE_HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Gets the time the open circuit lets a trial read through
+	 * 
+	 * @return time in ms as System.currentTimeMillis(), 0 if the circuit is
+	 *         not open
+	 */
+	public synchronized long getRetryTime() {
+		return state == STATE_OPEN ? openUntil_ms : 0;
+	}
+
+	/**
+	 * Checks whether a read would reach the device
+	 * 
+	 * @return false while the circuit is open
+	 */
+	public boolean isAvailable() {
+		return getState() != STATE_OPEN;
+	}
+
+	/**
+	 * Closes the circuit and clears the consecutive failures
+	 */
+	public synchronized void reset() {
+		state = STATE_CLOSED;
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * Reads all measurement registers, see TiINA219.readSnapshot
+	 * 
+	 * @param reuse
+	 *            snapshot to fill, or null to allocate one
+	 * @return the filled snapshot
+	 * @throws IOException
+	 *             if all attempts failed or the circuit is open
+	 */
+	public TiINA219Snapshot readSnapshot(TiINA219Snapshot reuse) throws IOException {
+		return read(OP_SNAPSHOT, reuse, 0);
+	}
+
+	/**
+	 * Reads all measurement registers if a conversion completed since the last
+	 * read, see TiINA219.readSnapshot(TiINA219Snapshot, boolean)
+	 * 
+	 * @param snapshot
+	 *            snapshot to fill
+	 * @return false if there was no new conversion
+	 * @throws IOException
+	 *             if all attempts failed or the circuit is open
+	 */
+	boolean readFreshSnapshot(TiINA219Snapshot snapshot) throws IOException {
+		return read(OP_FRESH_SNAPSHOT, snapshot, 0) != null;
+	}
+
+	/**
+	 * Waits for and reads the next conversion, see TiINA219.readNextSnapshot
+	 * 
+	 * @param reuse
+	 *            snapshot to fill, or null to allocate one
+	 * @param timeout_ms
+	 *            timeout of each attempt in ms
+	 * @return the filled snapshot
+	 * @throws IOException
+	 *             if all attempts failed or the circuit is open
+	 */
+	public TiINA219Snapshot readNextSnapshot(TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		return read(OP_NEXT_SNAPSHOT, reuse, timeout_ms);
+	}
+
+	/**
+	 * Triggers and reads one conversion, see TiINA219.readTriggered
+	 * 
+	 * @param reuse
+	 *            snapshot to fill, or null to allocate one
+	 * @param timeout_ms
+	 *            timeout of each attempt in ms
+	 * @return the filled snapshot
+	 * @throws IOException
+	 *             if all attempts failed or the circuit is open
+	 */
+	public TiINA219Snapshot readTriggered(TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		return read(OP_TRIGGERED, reuse, timeout_ms);
+	}
+
+	/**
+	 * Gets the number of retries
+	 * 
+	 * @return
+	 */
+	public synchronized int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * Gets the number of reads failed after all retries
+	 * 
+	 * @return
+	 */
+	public synchronized int getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Gets the number of reinitialisations
+	 * 
+	 * @return
+	 */
+	public synchronized int getReinitCount() {
+		return reinitCount;
+	}
+
+	/**
+	 * Gets the number of times the circuit opened
+	 * 
+	 * @return
+	 */
+	public synchronized int getTripCount() {
+		return tripCount;
+	}
+
+	/**
+	 * Gets the number of reads rejected while the circuit was open
+	 * 
+	 * @return
+	 */
+	public synchronized int getRejectCount() {
+		return rejectCount;
+	}
+
+	private TiINA219Snapshot read(int op, TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		// The monitor is only held to change the state, never across bus
+		// transactions or backoff sleeps, so the getters stay responsive
+		int attempts;
+		boolean trial;
+		synchronized (this) {
+			if (state == STATE_OPEN && System.currentTimeMillis() >= openUntil_ms) {
+				// One trial, the device was probably power cycled
+				state = STATE_HALF_OPEN;
+				trial = true;
+				attempts = 1;
+			} else if (state == STATE_CLOSED) {
+				trial = false;
+				attempts = retries + 1;
+			} else {
+				// Open, or half open with the trial read of another thread
+				rejectCount++;
+				throw new IOException("INA219 0x" + Integer.toHexString(sensor.i2cSlaveAddr) + " circuit open");
+			}
+		}
+
+		IOException error = null;
+		for (int attempt = 0; attempt < attempts; attempt++) {
+			if (attempt > 0) {
+				int delay_ms;
+				synchronized (this) {
+					retryCount++;
+					delay_ms = backoff(attempt);
+				}
+				TiINA219.sleep_us(delay_ms * 1000L);
+			}
+
+			try {
+				if (trial) {
+					sensor.reinitialize();
+				}
+
+				TiINA219Snapshot snapshot = call(op, reuse, timeout_ms);
+				synchronized (this) {
+					state = STATE_CLOSED;
+					consecutiveFailures = 0;
+				}
+				return snapshot;
+			} catch (InterruptedIOException ex) {
+				if (trial) {
+					synchronized (this) {
+						// Let the next read try again
+						state = STATE_OPEN;
+					}
+				}
+				throw ex;
+			} catch (IOException ex) {
+				error = ex;
+			}
+		}
+
+		boolean reinit = false;
+		synchronized (this) {
+			failureCount++;
+			consecutiveFailures++;
+
+			if (trial || consecutiveFailures >= tripThreshold) {
+				state = STATE_OPEN;
+				openUntil_ms = System.currentTimeMillis() + openTime_ms;
+				tripCount++;
+			} else if (reinitThreshold > 0 && consecutiveFailures % reinitThreshold == 0) {
+				reinit = true;
+			}
+		}
+
+		if (reinit) {
+			try {
+				sensor.reinitialize();
+				synchronized (this) {
+					reinitCount++;
+				}
+			} catch (InterruptedIOException ex) {
+				throw ex;
+			} catch (IOException ex) {
+				// Reported by the next read
+			}
+		}
+
+		throw error;
+	}
+
+	private TiINA219Snapshot call(int op, TiINA219Snapshot reuse, int timeout_ms) throws IOException {
+		switch (op) {
+		case OP_NEXT_SNAPSHOT:
+			return sensor.readNextSnapshot(reuse, timeout_ms);
+		case OP_TRIGGERED:
+			return sensor.readTriggered(reuse, timeout_ms);
+		case OP_FRESH_SNAPSHOT:
+			return sensor.readSnapshot(reuse, true) ? reuse : null;
+		default:
+			return sensor.readSnapshot(reuse);
+		}
+	}
+
+	// Backoff of the n-th retry in ms, jittered over its upper half
+	private int backoff(int retry) {
+		int backoff = backoff_ms;
+		for (int i = 1; i < retry && backoff < maxBackoff_ms; i++) {
+			backoff <<= 1;
+		}
+		if (backoff > maxBackoff_ms) {
+			backoff = maxBackoff_ms;
+		}
+
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+
+		int half = backoff >> 1;
+		return backoff - half + ((seed >>> 1) % (half + 1));
+	}
+
+}
@@ -0,0 +1,188 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Charge and energy accumulator fed from the sampling path. Current and power
+ * are integrated over the measured time between samples (trapezoidal rule) in
+ * 64-bit fixed point: the sub-unit remainder is kept separately and carried
+ * into whole uC / uJ counters, so nothing is lost to rounding and the
+ * counters last far beyond any uptime. No object is allocated per sample.
+ * 
+ * Attach it to a TiINA219Sampler or TiINA219TriggeredSampler as listener.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219EnergyAccumulator implements TiINA219SampleListener {
+
+	// Twice one uC in uA*us, the trapezoid sums are not halved
+	static final long CARRY = 2000000L;
+
+	// Whole uC / uJ and remainders in uA*us / uW*us, doubled
+	private long charge_uC = 0;
+	private long chargeRemainder = 0;
+	private long energy_uJ = 0;
+	private long energyRemainder = 0;
+
+	private long elapsed_us = 0;
+	private long samples = 0;
+	private long gaps = 0;
+
+	// Previous sample, integration starts with the second one
+	private boolean hasPrevious = false;
+	private long previousTimestamp_us;
+	private long previousCurrent_uA;
+	private long previousPower_uW;
+
+	// Intervals longer than this are treated as missing data
+	private long maxGap_us = 10000000L;
+
+	/**
+	 * Sets the longest interval between two samples that is integrated,
+	 * longer intervals (sampler stopped, bus errors) are skipped and counted
+	 * as gaps
+	 * 
+	 * @param maxGap_ms
+	 *            interval in ms, at most 60000 to keep the products in 64 bits
+	 */
+	public synchronized void setMaxGap_ms(int maxGap_ms) {
+		if (maxGap_ms <= 0 || maxGap_ms > 60000) {
+			throw new IllegalArgumentException("Invalid gap " + maxGap_ms);
+		}
+		this.maxGap_us = maxGap_ms * 1000L;
+	}
+
+	public synchronized void onSample(TiINA219 sensor, TiINA219Snapshot snapshot) {
+		long current_uA = snapshot.getCurrent_uA();
+		long power_uW = snapshot.getPower_uW();
+		long timestamp_us = snapshot.getTimestamp_us();
+
+		if (hasPrevious) {
+			long dt = timestamp_us - previousTimestamp_us;
+			if (dt > 0 && dt <= maxGap_us) {
+				chargeRemainder += (current_uA + previousCurrent_uA) * dt;
+				charge_uC += chargeRemainder / CARRY;
+				chargeRemainder %= CARRY;
+
+				energyRemainder += (power_uW + previousPower_uW) * dt;
+				energy_uJ += energyRemainder / CARRY;
+				energyRemainder %= CARRY;
+
+				elapsed_us += dt;
+			} else {
+				gaps++;
+			}
+		}
+
+		hasPrevious = true;
+		previousTimestamp_us = timestamp_us;
+		previousCurrent_uA = current_uA;
+		previousPower_uW = power_uW;
+		samples++;
+	}
+
+	/**
+	 * Copies the counters into another accumulator, atomically with an
+	 * optional reset, e.g. to report one interval at a time
+	 * 
+	 * @param dst
+	 *            accumulator receiving the counters
+	 * @param reset
+	 *            reset the counters after copying
+	 */
+	public void snapshot(TiINA219EnergyAccumulator dst, boolean reset) {
+		synchronized (this) {
+			synchronized (dst) {
+				dst.charge_uC = charge_uC;
+				dst.chargeRemainder = chargeRemainder;
+				dst.energy_uJ = energy_uJ;
+				dst.energyRemainder = energyRemainder;
+				dst.elapsed_us = elapsed_us;
+				dst.samples = samples;
+				dst.gaps = gaps;
+			}
+			if (reset) {
+				clear();
+			}
+		}
+	}
+
+	/**
+	 * Resets the counters, the next interval starts at the last sample
+	 */
+	public synchronized void reset() {
+		clear();
+	}
+
+	private void clear() {
+		charge_uC = 0;
+		chargeRemainder = 0;
+		energy_uJ = 0;
+		energyRemainder = 0;
+		elapsed_us = 0;
+		samples = 0;
+		gaps = 0;
+	}
+
+	/**
+	 * Gets the accumulated charge, negative for reverse current
+	 * 
+	 * @return charge in uC (uA*s)
+	 */
+	public synchronized long getCharge_uC() {
+		return charge_uC;
+	}
+
+	/**
+	 * Gets the accumulated charge
+	 * 
+	 * @return charge in mAh
+	 */
+	public synchronized double getCharge_mAh() {
+		return (charge_uC + (double) chargeRemainder / CARRY) / 3600000.0;
+	}
+
+	/**
+	 * Gets the accumulated energy
+	 * 
+	 * @return energy in uJ (uW*s)
+	 */
+	public synchronized long getEnergy_uJ() {
+		return energy_uJ;
+	}
+
+	/**
+	 * Gets the accumulated energy
+	 * 
+	 * @return energy in Wh
+	 */
+	public synchronized double getEnergy_Wh() {
+		return (energy_uJ + (double) energyRemainder / CARRY) / 3600000000.0;
+	}
+
+	/**
+	 * Gets the integrated time
+	 * 
+	 * @return time in us
+	 */
+	public synchronized long getElapsed_us() {
+		return elapsed_us;
+	}
+
+	/**
+	 * Gets the number of samples seen
+	 * 
+	 * @return
+	 */
+	public synchronized long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * Gets the number of intervals skipped because they were too long
+	 * 
+	 * @return
+	 */
+	public synchronized long getGapCount() {
+		return gaps;
+	}
+
+}
@@ -0,0 +1,124 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Time-aligned readings of a TiINA219Group: one snapshot per device, all from
+ * conversions started back to back by the same trigger, and the total current
+ * and power of the group. The holder is meant to be reused.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Frame {
+
+	// Snapshot of each device, in group order
+	TiINA219Snapshot[] snapshots;
+
+	// Time of the first trigger write and time to write all of them in us
+	long trigger_us;
+	int triggerSkew_us;
+
+	long totalCurrent_uA;
+	long totalPower_uW;
+
+	/**
+	 * Initialize a frame for a number of devices
+	 * 
+	 * @param devices
+	 *            number of devices of the group
+	 */
+	public TiINA219Frame(int devices) {
+		snapshots = new TiINA219Snapshot[devices];
+		for (int i = 0; i < devices; i++) {
+			snapshots[i] = new TiINA219Snapshot();
+		}
+	}
+
+	/**
+	 * Gets the number of devices
+	 * 
+	 * @return
+	 */
+	public int getDeviceCount() {
+		return snapshots.length;
+	}
+
+	/**
+	 * Gets the readings of one device
+	 * 
+	 * @param index
+	 *            index of the device in the group
+	 * @return
+	 */
+	public TiINA219Snapshot getSnapshot(int index) {
+		return snapshots[index];
+	}
+
+	/**
+	 * Gets the time the conversions were triggered
+	 * 
+	 * @return timestamp in microseconds, see TiINA219.now_us()
+	 */
+	public long getTriggerTimestamp_us() {
+		return trigger_us;
+	}
+
+	/**
+	 * Gets the time between the start of the first and of the last conversion
+	 * 
+	 * @return skew in microseconds
+	 */
+	public int getTriggerSkew_us() {
+		return triggerSkew_us;
+	}
+
+	/**
+	 * Gets the sum of the currents of all devices in uA
+	 * 
+	 * @return
+	 */
+	public long getTotalCurrent_uA() {
+		return totalCurrent_uA;
+	}
+
+	/**
+	 * Gets the sum of the currents of all devices in mA
+	 * 
+	 * @return
+	 */
+	public double getTotalCurrent_mA() {
+		return totalCurrent_uA * 0.001;
+	}
+
+	/**
+	 * Gets the sum of the powers of all devices in uW
+	 * 
+	 * @return
+	 */
+	public long getTotalPower_uW() {
+		return totalPower_uW;
+	}
+
+	/**
+	 * Gets the sum of the powers of all devices in mW
+	 * 
+	 * @return
+	 */
+	public double getTotalPower_mW() {
+		return totalPower_uW * 0.001;
+	}
+
+	/**
+	 * Sums current and power over the devices
+	 */
+	void computeTotals() {
+		long current = 0;
+		long power = 0;
+		for (int i = 0; i < snapshots.length; i++) {
+			current += snapshots[i].getCurrent_uA();
+			power += snapshots[i].getPower_uW();
+		}
+
+		totalCurrent_uA = current;
+		totalPower_uW = power;
+	}
+
+}
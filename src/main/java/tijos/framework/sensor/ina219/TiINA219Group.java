@@ -0,0 +1,155 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+/**
+ * Synchronized triggering of several INA219 devices on one bus. trigger()
+ * writes the triggered-mode config to every device back to back under the bus
+ * lock, so all conversions start within a few bus transactions of each other
+ * instead of being skewed by whole conversion periods as in continuous mode.
+ * The results are collected once each device sets CNVR and returned as one
+ * TiINA219Frame with the total current and power.
+ * 
+ * All devices must be calibrated and share the same bus. They are powered
+ * down between two triggers.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Group {
+
+	private TiINA219[] sensors;
+	private TiINA219Bus bus;
+
+	// Devices whose conversion has been read in the current trigger
+	private boolean[] done;
+
+	/**
+	 * Initialize a group
+	 * 
+	 * @param sensors
+	 *            devices of the group, all on the same bus
+	 */
+	public TiINA219Group(TiINA219[] sensors) {
+		if (sensors.length == 0 || sensors.length > TiINA219Array.DEVICE_COUNT) {
+			throw new IllegalArgumentException("Invalid group size " + sensors.length);
+		}
+
+		this.bus = sensors[0].getBus();
+		for (int i = 1; i < sensors.length; i++) {
+			if (sensors[i].getBus() != bus) {
+				throw new IllegalArgumentException("Devices of a group must share one bus");
+			}
+		}
+
+		this.sensors = new TiINA219[sensors.length];
+		System.arraycopy(sensors, 0, this.sensors, 0, sensors.length);
+		this.done = new boolean[sensors.length];
+	}
+
+	/**
+	 * Gets the number of devices
+	 * 
+	 * @return
+	 */
+	public int getDeviceCount() {
+		return sensors.length;
+	}
+
+	/**
+	 * Gets a device of the group
+	 * 
+	 * @param index
+	 *            index of the device
+	 * @return
+	 */
+	public TiINA219 getDevice(int index) {
+		return sensors[index];
+	}
+
+	/**
+	 * Triggers a shunt and bus conversion on all devices, waits for all of
+	 * them and reads them, then powers the devices down
+	 * 
+	 * @param reuse
+	 *            frame to fill, a new one is allocated if null
+	 * @param timeout_ms
+	 *            maximum time to wait for the conversions
+	 * @return the filled frame
+	 * @throws IOException
+	 *             on bus error or if a conversion did not complete in time
+	 */
+	public synchronized TiINA219Frame trigger(TiINA219Frame reuse, int timeout_ms) throws IOException {
+		TiINA219Frame frame = reuse;
+		if (frame == null) {
+			frame = new TiINA219Frame(sensors.length);
+		} else if (frame.snapshots.length != sensors.length) {
+			throw new IllegalArgumentException("Frame is for " + frame.snapshots.length + " devices");
+		}
+
+		int conversion_us = 0;
+		try {
+			synchronized (bus) {
+				frame.trigger_us = TiINA219.now_us();
+				for (int i = 0; i < sensors.length; i++) {
+					sensors[i].setMode(TiINA219.INA219_CONFIG_MODE_SANDBVOLT_TRIGGERED);
+				}
+				frame.triggerSkew_us = (int) (TiINA219.now_us() - frame.trigger_us);
+			}
+
+			// Only known once the devices are in triggered mode, in power-down
+			// the conversion time is 0
+			for (int i = 0; i < sensors.length; i++) {
+				done[i] = false;
+				int c = sensors[i].getConversionTime_us();
+				if (c > conversion_us) {
+					conversion_us = c;
+				}
+			}
+
+			long deadline = frame.trigger_us + timeout_ms * 1000L;
+			TiINA219.sleep_us(frame.trigger_us + conversion_us - TiINA219.now_us());
+
+			int remaining = sensors.length;
+			while (true) {
+				for (int i = 0; i < sensors.length; i++) {
+					if (!done[i] && sensors[i].readSnapshot(frame.snapshots[i], true)) {
+						done[i] = true;
+						remaining--;
+					}
+				}
+
+				if (remaining == 0) {
+					break;
+				}
+				if (TiINA219.now_us() >= deadline) {
+					throw new IOException("INA219 group conversion timeout");
+				}
+				TiINA219.sleep_us(conversion_us / 8);
+			}
+		} finally {
+			powerDown();
+		}
+
+		frame.computeTotals();
+		return frame;
+	}
+
+	// Powers all devices down, even if some fail
+	private void powerDown() throws IOException {
+		IOException error = null;
+		synchronized (bus) {
+			for (int i = 0; i < sensors.length; i++) {
+				try {
+					sensors[i].setMode(TiINA219.INA219_CONFIG_MODE_POWERDOWN);
+				} catch (IOException ex) {
+					error = ex;
+				}
+			}
+		}
+
+		if (error != null) {
+			throw error;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reader of the binary INA219 log written by TiINA219LogWriter. Each sample is
+ * returned as a snapshot carrying the calibration it was measured with, so
+ * the usual snapshot getters give engineering units.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219LogReader {
+
+	private InputStream in;
+
+	private TiINA219Calibration calibration;
+
+	// Samples left in the current block and previous sample
+	private long remaining = 0;
+	private long previousTimestamp_us;
+	private int previousShunt;
+	private int previousBus;
+	private int previousCurrent;
+	private int previousPower;
+
+	/**
+	 * Initialize the reader and check the log header
+	 * 
+	 * @param in
+	 *            source stream, preferably buffered
+	 * @throws IOException
+	 *             if the stream is not an INA219 log
+	 */
+	public TiINA219LogReader(InputStream in) throws IOException {
+		this.in = in;
+
+		for (int i = 0; i < TiINA219LogWriter.MAGIC.length; i++) {
+			if (readByte() != TiINA219LogWriter.MAGIC[i]) {
+				throw new IOException("Not an INA219 log");
+			}
+		}
+
+		int version = readByte();
+		if (version != TiINA219LogWriter.VERSION) {
+			throw new IOException("Unsupported INA219 log version " + version);
+		}
+	}
+
+	/**
+	 * Reads the next sample
+	 * 
+	 * @param dst
+	 *            holder to fill
+	 * @return false at the end of the log
+	 * @throws IOException
+	 */
+	public boolean read(TiINA219Snapshot dst) throws IOException {
+		while (remaining == 0) {
+			int type = in.read();
+			if (type < 0) {
+				return false;
+			}
+
+			if (type == TiINA219LogWriter.RECORD_CALIBRATION) {
+				int shunt = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+				int cal = (readByte() << 8) | readByte();
+				int config = (readByte() << 8) | readByte();
+				calibration = TiINA219Calibration.fromRegisters(shunt, cal, config);
+			} else if (type == TiINA219LogWriter.RECORD_BLOCK) {
+				remaining = readVarint();
+				previousTimestamp_us = unzigzag(readVarint());
+				previousShunt = 0;
+				previousBus = 0;
+				previousCurrent = 0;
+				previousPower = 0;
+			} else {
+				throw new IOException("Invalid INA219 log record " + type);
+			}
+		}
+
+		previousTimestamp_us += readVarint();
+		previousShunt += (int) unzigzag(readVarint());
+		previousBus += (int) unzigzag(readVarint());
+		previousCurrent += (int) unzigzag(readVarint());
+		previousPower += (int) unzigzag(readVarint());
+		remaining--;
+
+		dst.timestamp_us = previousTimestamp_us;
+		dst.shuntRaw = previousShunt;
+		dst.busRegister = previousBus;
+		dst.currentRaw = previousCurrent;
+		dst.powerRaw = previousPower;
+		dst.calibration = calibration;
+		return true;
+	}
+
+	/**
+	 * Closes the stream
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Truncated INA219 log");
+		}
+		return b;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint in INA219 log");
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
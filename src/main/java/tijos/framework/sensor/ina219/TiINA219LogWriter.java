@@ -0,0 +1,230 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writer of the compact binary INA219 log. Raw register values are stored
+ * with the calibration they were measured with, so the conversion to
+ * engineering units can be done later, off-device, at full precision.
+ * 
+ * Format, multi-byte fixed fields are big-endian:
+ * 
+ * <pre>
+ * header      : 'I' '2' '1' '9' version(1)
+ * record      : type(1) payload
+ * calibration : type 1, shunt_uOhm(4) cal(2) config(2)
+ * block       : type 2, count(varint) timestamp_us(zigzag varint) samples
+ * sample      : dt_us(varint) shunt bus current power (zigzag varint each)
+ * </pre>
+ * 
+ * Inside a block every value is the difference to the previous sample, the
+ * first sample of a block is relative to its timestamp and to 0. The bus
+ * value is the full register with the CNVR and OVF bits.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219LogWriter implements TiINA219SampleListener {
+
+	static final byte[] MAGIC = { 'I', '2', '1', '9' };
+	static final int VERSION = 1;
+
+	static final int RECORD_CALIBRATION = 1;
+	static final int RECORD_BLOCK = 2;
+
+	// Largest encoded sample: 64-bit and four 32-bit varints
+	static final int MAX_SAMPLE_BYTES = 10 + 4 * 5;
+
+	private OutputStream out;
+	private int blockSize;
+
+	// Encoded samples of the current block
+	private byte[] block;
+	private int blockLength = 0;
+	private int blockCount = 0;
+	private long blockTimestamp_us;
+
+	// Previous sample of the block
+	private long previousTimestamp_us;
+	private int previousShunt;
+	private int previousBus;
+	private int previousCurrent;
+	private int previousPower;
+
+	// Calibration of the samples in the block
+	private TiINA219Calibration calibration;
+
+	// Record header buffer
+	private byte[] header = new byte[1 + 10 + 10];
+
+	private int errors = 0;
+
+	/**
+	 * Initialize the writer and write the log header
+	 * 
+	 * @param out
+	 *            destination stream
+	 * @param blockSize
+	 *            samples per block
+	 * @throws IOException
+	 */
+	public TiINA219LogWriter(OutputStream out, int blockSize) throws IOException {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize);
+		}
+
+		this.out = out;
+		this.blockSize = blockSize;
+		this.block = new byte[blockSize * MAX_SAMPLE_BYTES];
+
+		out.write(MAGIC);
+		out.write(VERSION);
+	}
+
+	/**
+	 * Appends a snapshot, errors are counted, see getErrorCount()
+	 */
+	public void onSample(TiINA219 sensor, TiINA219Snapshot snapshot) {
+		try {
+			write(snapshot);
+		} catch (IOException e) {
+			errors++;
+		}
+	}
+
+	/**
+	 * Gets the number of snapshots that could not be written by onSample()
+	 * 
+	 * @return
+	 */
+	public synchronized int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Appends a snapshot
+	 * 
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public synchronized void write(TiINA219Snapshot snapshot) throws IOException {
+		write(snapshot.calibration, snapshot.timestamp_us, snapshot.shuntRaw, snapshot.busRegister,
+				snapshot.currentRaw, snapshot.powerRaw);
+	}
+
+	/**
+	 * Appends raw register values, e.g. drained from a TiINA219Sampler
+	 * 
+	 * @param calibration
+	 *            calibration of the device, may be null if not calibrated
+	 * @param timestamp_us
+	 *            time of the sample in us
+	 * @param shunt
+	 *            raw shunt voltage
+	 * @param bus
+	 *            bus voltage register including CNVR/OVF
+	 * @param current
+	 *            raw current
+	 * @param power
+	 *            raw power
+	 * @throws IOException
+	 */
+	public synchronized void write(TiINA219Calibration calibration, long timestamp_us, int shunt, int bus,
+			int current, int power) throws IOException {
+		if (calibration != this.calibration && calibration != null) {
+			flush();
+			writeCalibration(calibration);
+			this.calibration = calibration;
+		}
+
+		if (blockCount == 0) {
+			blockTimestamp_us = timestamp_us;
+			previousTimestamp_us = timestamp_us;
+			previousShunt = 0;
+			previousBus = 0;
+			previousCurrent = 0;
+			previousPower = 0;
+		}
+
+		int n = blockLength;
+		n = putVarint(block, n, timestamp_us - previousTimestamp_us);
+		n = putVarint(block, n, zigzag(shunt - previousShunt));
+		n = putVarint(block, n, zigzag(bus - previousBus));
+		n = putVarint(block, n, zigzag(current - previousCurrent));
+		n = putVarint(block, n, zigzag(power - previousPower));
+		blockLength = n;
+		blockCount++;
+
+		previousTimestamp_us = timestamp_us;
+		previousShunt = shunt;
+		previousBus = bus;
+		previousCurrent = current;
+		previousPower = power;
+
+		if (blockCount == blockSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the pending block, if any, and flushes the stream
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (blockCount > 0) {
+			int n = 0;
+			header[n++] = RECORD_BLOCK;
+			n = putVarint(header, n, blockCount);
+			n = putVarint(header, n, zigzag(blockTimestamp_us));
+			out.write(header, 0, n);
+			out.write(block, 0, blockLength);
+
+			blockCount = 0;
+			blockLength = 0;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the pending block and closes the stream
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private void writeCalibration(TiINA219Calibration calibration) throws IOException {
+		int shunt = calibration.getShunt_uOhm();
+		int cal = calibration.getCalValue();
+		int config = calibration.getConfig();
+
+		header[0] = RECORD_CALIBRATION;
+		header[1] = (byte) (shunt >>> 24);
+		header[2] = (byte) (shunt >>> 16);
+		header[3] = (byte) (shunt >>> 8);
+		header[4] = (byte) shunt;
+		header[5] = (byte) (cal >>> 8);
+		header[6] = (byte) cal;
+		header[7] = (byte) (config >>> 8);
+		header[8] = (byte) config;
+		out.write(header, 0, 9);
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	// Unsigned LEB128, 7 bits per byte, low bits first
+	static int putVarint(byte[] buf, int offset, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buf[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[offset++] = (byte) value;
+		return offset;
+	}
+
+}
@@ -0,0 +1,213 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Transaction counters and latency histogram of a bus or of one device.
+ * 
+ * Counters are only updated by the bus while it already holds its monitor for
+ * the transaction, so recording takes no extra lock and allocates nothing. A
+ * metrics object belongs to the first bus it is attached to, and cannot be
+ * shared with another bus. Readers take a consistent copy with snapshot(),
+ * which briefly holds that bus monitor.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Metrics {
+
+	/**
+	 * Registers counted, 0x00 to 0x05
+	 */
+	public static final int REGISTER_COUNT = 6;
+
+	/**
+	 * Upper bounds of the latency buckets in us, the last bucket counts the
+	 * slower transactions
+	 */
+	static final int[] LATENCY_BOUNDS_US = { 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+	public static final int LATENCY_BUCKETS = LATENCY_BOUNDS_US.length + 1;
+
+	// Bus whose monitor guards the counters, null until attached
+	private TiINA219Bus owner;
+
+	private final long[] reads = new long[REGISTER_COUNT];
+	private final long[] writes = new long[REGISTER_COUNT];
+	private final long[] latency = new long[LATENCY_BUCKETS];
+	private long errors = 0;
+	private long calibrationRewrites = 0;
+	private long totalLatency_ns = 0;
+	private long maxLatency_ns = 0;
+
+	/**
+	 * Records a completed transaction, called with the bus monitor held
+	 */
+	void recordTransaction(int register, boolean write, long latency_ns) {
+		if (register >= 0 && register < REGISTER_COUNT) {
+			if (write) {
+				writes[register]++;
+			} else {
+				reads[register]++;
+			}
+		}
+
+		int us = (int) (latency_ns / 1000);
+		int bucket = 0;
+		while (bucket < LATENCY_BOUNDS_US.length && us >= LATENCY_BOUNDS_US[bucket]) {
+			bucket++;
+		}
+		latency[bucket]++;
+
+		totalLatency_ns += latency_ns;
+		if (latency_ns > maxLatency_ns) {
+			maxLatency_ns = latency_ns;
+		}
+	}
+
+	/**
+	 * Records a failed transaction, called with the bus monitor held
+	 */
+	void recordError() {
+		errors++;
+	}
+
+	/**
+	 * Records a calibration lost by the chip and written again, called with
+	 * the bus monitor held
+	 */
+	void recordCalibrationRewrite() {
+		calibrationRewrites++;
+	}
+
+	/**
+	 * Attaches to the bus that records into this object
+	 * 
+	 * @param bus
+	 */
+	synchronized void attach(TiINA219Bus bus) {
+		if (owner != null && owner != bus) {
+			throw new IllegalArgumentException("Metrics already used by another bus");
+		}
+		owner = bus;
+	}
+
+	/**
+	 * Copies the counters consistently, holding the bus monitor for the copy
+	 * 
+	 * @param reuse
+	 *            metrics to fill, or null to allocate one
+	 * @return the copy
+	 */
+	public TiINA219Metrics snapshot(TiINA219Metrics reuse) {
+		TiINA219Metrics dst = reuse != null ? reuse : new TiINA219Metrics();
+
+		Object lock;
+		synchronized (this) {
+			lock = owner != null ? (Object) owner : this;
+		}
+
+		synchronized (lock) {
+			System.arraycopy(reads, 0, dst.reads, 0, REGISTER_COUNT);
+			System.arraycopy(writes, 0, dst.writes, 0, REGISTER_COUNT);
+			System.arraycopy(latency, 0, dst.latency, 0, LATENCY_BUCKETS);
+			dst.errors = errors;
+			dst.calibrationRewrites = calibrationRewrites;
+			dst.totalLatency_ns = totalLatency_ns;
+			dst.maxLatency_ns = maxLatency_ns;
+		}
+		return dst;
+	}
+
+	/**
+	 * Gets the number of reads of a register
+	 * 
+	 * @param register
+	 *            register address
+	 * @return
+	 */
+	public long getReadCount(int register) {
+		return reads[register];
+	}
+
+	/**
+	 * Gets the number of writes of a register
+	 * 
+	 * @param register
+	 *            register address
+	 * @return
+	 */
+	public long getWriteCount(int register) {
+		return writes[register];
+	}
+
+	/**
+	 * Gets the number of completed transactions
+	 * 
+	 * @return
+	 */
+	public long getTransactionCount() {
+		long count = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			count += latency[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of failed transactions
+	 * 
+	 * @return
+	 */
+	public long getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Gets the number of times a lost calibration was written again
+	 * 
+	 * @return
+	 */
+	public long getCalibrationRewriteCount() {
+		return calibrationRewrites;
+	}
+
+	/**
+	 * Gets the number of transactions in a latency bucket
+	 * 
+	 * @param bucket
+	 *            0 to LATENCY_BUCKETS - 1
+	 * @return
+	 */
+	public long getLatencyCount(int bucket) {
+		return latency[bucket];
+	}
+
+	/**
+	 * Gets the exclusive upper bound of a latency bucket in us
+	 * 
+	 * @param bucket
+	 *            0 to LATENCY_BUCKETS - 1
+	 * @return bound in us, Integer.MAX_VALUE for the last bucket
+	 */
+	public static int getLatencyBound_us(int bucket) {
+		return bucket < LATENCY_BOUNDS_US.length ? LATENCY_BOUNDS_US[bucket] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Gets the mean transaction latency in us
+	 * 
+	 * @return
+	 */
+	public double getMeanLatency_us() {
+		long count = getTransactionCount();
+		return count == 0 ? 0 : totalLatency_ns * 0.001 / count;
+	}
+
+	/**
+	 * Gets the slowest transaction latency in us
+	 * 
+	 * @return
+	 */
+	public double getMaxLatency_us() {
+		return maxLatency_ns * 0.001;
+	}
+
+}
@@ -0,0 +1,32 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * INA219 register addresses and bit values used by the driver classes
+ * 
+ * @author TiJOS
+ */
+class TiINA219Register {
+
+	// CONFIG REGISTER (R/W)
+	public static final int INA219_REG_CONFIG = 0x00;
+
+	// SHUNT VOLTAGE REGISTER (R)
+	public static final int INA219_REG_SHUNTVOLTAGE = 0x01;
+
+	// BUS VOLTAGE REGISTER =R;
+	public static final int INA219_REG_BUSVOLTAGE = 0x02;
+	// POWER REGISTER =R;
+	public static final int INA219_REG_POWER = 0x03;
+	// CURRENT REGISTER =R;
+	public static final int INA219_REG_CURRENT = 0x04;
+	// CALIBRATION REGISTER =R/W;
+	public static final int INA219_REG_CALIBRATION = 0x05;
+
+	// Conversion ready bit of the BUS VOLTAGE REGISTER
+	public static final int INA219_BUSVOLTAGE_CNVR = 0x0002;
+	// Math overflow bit of the BUS VOLTAGE REGISTER
+	public static final int INA219_BUSVOLTAGE_OVF = 0x0001;
+
+	// CONFIG REGISTER value after power-on reset
+	public static final int INA219_CONFIG_RESET = 0x399F;
+}
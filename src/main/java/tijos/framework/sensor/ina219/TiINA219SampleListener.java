@@ -0,0 +1,21 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Receives the snapshots read by a sampler. The snapshot is reused by the
+ * sampler, copy what is needed before returning.
+ * 
+ * @author TiJOS
+ */
+public interface TiINA219SampleListener {
+
+	/**
+	 * Called from the sampling thread for every snapshot read
+	 * 
+	 * @param sensor
+	 *            device the snapshot was read from
+	 * @param snapshot
+	 *            the readings, only valid during the call
+	 */
+	void onSample(TiINA219 sensor, TiINA219Snapshot snapshot);
+
+}
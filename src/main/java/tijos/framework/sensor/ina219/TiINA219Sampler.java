@@ -0,0 +1,338 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Background sampler capturing every conversion of a device in continuous
+ * mode. Raw register values are stored in preallocated ring buffers, one
+ * int[] per channel plus a timestamp ring and a ring of the calibration each
+ * sample was taken with, and consumers pull them in batches with drain(). No
+ * object is allocated per sample.
+ * 
+ * When the rings are full the sampler either overwrites the oldest samples or
+ * blocks until the consumer drains, see OVERWRITE and BLOCK.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Sampler implements Runnable {
+
+	// Drop the oldest samples when the rings are full
+	public static final int OVERWRITE = 0;
+	// Wait for the consumer when the rings are full
+	public static final int BLOCK = 1;
+
+	// Listeners called for every sample
+	static final int MAX_LISTENERS = 8;
+
+	private TiINA219 sensor;
+	private int policy;
+
+	// Rings of raw SHUNTVOLTAGE, BUSVOLTAGE (with CNVR/OVF), CURRENT and
+	// POWER register values and timestamps in us
+	private int[] shuntRing;
+	private int[] busRing;
+	private int[] currentRing;
+	private int[] powerRing;
+	private long[] timestampRing;
+
+	// Calibration of each sample, converts its CURRENT and POWER values even
+	// when auto-ranging changes it between samples
+	private TiINA219Calibration[] calibrationRing;
+
+	// Index of the oldest sample and number of samples, guarded by this
+	private int head = 0;
+	private int count = 0;
+	private int overruns = 0;
+	private int errors = 0;
+
+	private TiINA219SampleListener[] listeners = new TiINA219SampleListener[MAX_LISTENERS];
+	private int listenerCount = 0;
+
+	private TiINA219Snapshot snapshot = new TiINA219Snapshot();
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Initialize the sampler
+	 * 
+	 * @param sensor
+	 *            device to sample
+	 * @param capacity
+	 *            number of samples the rings can hold
+	 * @param policy
+	 *            OVERWRITE or BLOCK
+	 */
+	public TiINA219Sampler(TiINA219 sensor, int capacity, int policy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		if (policy != OVERWRITE && policy != BLOCK) {
+			throw new IllegalArgumentException("Invalid policy " + policy);
+		}
+
+		this.sensor = sensor;
+		this.policy = policy;
+
+		shuntRing = new int[capacity];
+		busRing = new int[capacity];
+		currentRing = new int[capacity];
+		powerRing = new int[capacity];
+		timestampRing = new long[capacity];
+		calibrationRing = new TiINA219Calibration[capacity];
+	}
+
+	/**
+	 * Adds a listener called from the sampling thread for every sample, before
+	 * it is stored. Listeners must be added before start().
+	 * 
+	 * @param listener
+	 */
+	public void addListener(TiINA219SampleListener listener) {
+		if (running) {
+			throw new IllegalStateException("Sampler is running");
+		}
+		if (listenerCount == MAX_LISTENERS) {
+			throw new IllegalStateException("Too many listeners");
+		}
+		listeners[listenerCount++] = listener;
+	}
+
+	/**
+	 * Gets the sampled device
+	 * 
+	 * @return
+	 */
+	public TiINA219 getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * Gets the number of samples waiting to be drained
+	 * 
+	 * @return
+	 */
+	public synchronized int available() {
+		return count;
+	}
+
+	/**
+	 * Gets the number of samples lost because the rings were full
+	 * 
+	 * @return
+	 */
+	public synchronized int getOverrunCount() {
+		return overruns;
+	}
+
+	/**
+	 * Gets the number of failed reads
+	 * 
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Moves the oldest samples to the destination arrays. A null array skips
+	 * its channel. Does not block.
+	 * 
+	 * @param shunt
+	 *            raw shunt voltages, may be null
+	 * @param bus
+	 *            raw bus voltage registers including CNVR/OVF, may be null
+	 * @param current
+	 *            raw currents, may be null
+	 * @param power
+	 *            raw powers, may be null
+	 * @param timestamps
+	 *            timestamps in us, may be null
+	 * @param offset
+	 *            first index to write in the destination arrays
+	 * @param length
+	 *            maximum number of samples to move
+	 * @return number of samples moved
+	 */
+	public int drain(int[] shunt, int[] bus, int[] current, int[] power, long[] timestamps, int offset, int length) {
+		return drain(shunt, bus, current, power, timestamps, null, offset, length);
+	}
+
+	/**
+	 * Moves the oldest samples to the destination arrays together with the
+	 * calibration of each sample, which converts its raw current and power
+	 * (see TiINA219Calibration.toCurrent_uA). A null array skips its channel.
+	 * Does not block.
+	 * 
+	 * @param shunt
+	 *            raw shunt voltages, may be null
+	 * @param bus
+	 *            raw bus voltage registers including CNVR/OVF, may be null
+	 * @param current
+	 *            raw currents, may be null
+	 * @param power
+	 *            raw powers, may be null
+	 * @param timestamps
+	 *            timestamps in us, may be null
+	 * @param calibrations
+	 *            calibration of each sample, null if the device was not
+	 *            calibrated, may be null
+	 * @param offset
+	 *            first index to write in the destination arrays
+	 * @param length
+	 *            maximum number of samples to move
+	 * @return number of samples moved
+	 */
+	public synchronized int drain(int[] shunt, int[] bus, int[] current, int[] power, long[] timestamps,
+			TiINA219Calibration[] calibrations, int offset, int length) {
+		int n = length < count ? length : count;
+		int capacity = shuntRing.length;
+
+		// At most two contiguous parts because of the wrap around
+		int done = 0;
+		while (done < n) {
+			int part = n - done;
+			if (head + part > capacity) {
+				part = capacity - head;
+			}
+
+			int dst = offset + done;
+			if (shunt != null) {
+				System.arraycopy(shuntRing, head, shunt, dst, part);
+			}
+			if (bus != null) {
+				System.arraycopy(busRing, head, bus, dst, part);
+			}
+			if (current != null) {
+				System.arraycopy(currentRing, head, current, dst, part);
+			}
+			if (power != null) {
+				System.arraycopy(powerRing, head, power, dst, part);
+			}
+			if (timestamps != null) {
+				System.arraycopy(timestampRing, head, timestamps, dst, part);
+			}
+			if (calibrations != null) {
+				System.arraycopy(calibrationRing, head, calibrations, dst, part);
+			}
+
+			head = (head + part) % capacity;
+			done += part;
+		}
+
+		count -= n;
+		if (n > 0) {
+			notifyAll();
+		}
+		return n;
+	}
+
+	/**
+	 * Sets the device in continuous shunt and bus mode and starts the
+	 * sampling thread
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+
+		if (sensor.getMode() != TiINA219.INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS) {
+			sensor.setMode(TiINA219.INA219_CONFIG_MODE_SANDBVOLT_CONTINUOUS);
+		}
+
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops the sampling thread and waits for it to terminate, samples not
+	 * drained yet are kept
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	/**
+	 * Sampling loop, reads every conversion once
+	 */
+	public void run() {
+		// Allow a few conversion cycles before reporting a timeout
+		int timeout_ms = 10 + 4 * sensor.getConversionTime_us() / 1000;
+
+		int consecutiveErrors = 0;
+		while (running) {
+			try {
+				sensor.readNextSnapshot(snapshot, timeout_ms);
+				consecutiveErrors = 0;
+			} catch (IOException e) {
+				if (!running) {
+					break;
+				}
+				errors++;
+
+				try {
+					TiINA219.errorBackoff(sensor.getConversionTime_us(), ++consecutiveErrors);
+				} catch (InterruptedIOException ie) {
+					// stop() requested
+				}
+				continue;
+			}
+
+			for (int i = 0; i < listenerCount; i++) {
+				listeners[i].onSample(sensor, snapshot);
+			}
+
+			store(snapshot);
+		}
+	}
+
+	private synchronized void store(TiINA219Snapshot snapshot) {
+		int capacity = shuntRing.length;
+
+		while (count == capacity) {
+			if (policy == OVERWRITE) {
+				head = (head + 1) % capacity;
+				count--;
+				overruns++;
+				break;
+			}
+
+			if (!running) {
+				overruns++;
+				return;
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// stop() requested
+			}
+		}
+
+		int tail = (head + count) % capacity;
+		shuntRing[tail] = snapshot.shuntRaw;
+		busRing[tail] = snapshot.busRegister;
+		currentRing[tail] = snapshot.currentRaw;
+		powerRing[tail] = snapshot.powerRaw;
+		timestampRing[tail] = snapshot.timestamp_us;
+		calibrationRing[tail] = snapshot.calibration;
+		count++;
+	}
+
+}
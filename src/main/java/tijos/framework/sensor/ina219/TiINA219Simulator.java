@@ -0,0 +1,362 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+/**
+ * In-memory model of INA219 devices on one bus, to run and measure the driver
+ * without hardware. Registers 0x00 to 0x05 behave as described in the
+ * datasheet:
+ * 
+ * - conversions complete after the time given by the ADC settings, in
+ * continuous or triggered mode, and set CNVR; reading POWER or writing CONFIG
+ * clears it
+ * 
+ * - Current = Shunt * Cal / 4096 and Power = Current * Bus / 5000, OVF is set
+ * when the shunt voltage exceeds the PGA range or the results overflow
+ * 
+ * - reset() models a brown-out, CONFIG returns to its power-on value and the
+ * calibration is lost
+ * 
+ * Every transaction can be delayed to model the bus speed, and transactions
+ * are counted.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Simulator implements TiINA219Transport {
+
+	/**
+	 * State of one simulated device
+	 */
+	static class Device {
+		int config = TiINA219Register.INA219_CONFIG_RESET;
+		int calibration = 0;
+		int shunt = 0;
+		int bus = 0;
+		int power = 0;
+		int current = 0;
+
+		// Analog inputs
+		int shunt_uV = 0;
+		int bus_mV = 0;
+
+		// Start of the conversion in progress in ns, or -1 if none
+		long conversionStart_ns = 0;
+
+		// Last register addressed
+		int pointer = 0;
+	}
+
+	private Device[] devices = new Device[TiINA219Array.DEVICE_COUNT];
+
+	private long latency_ns = 0;
+
+	private long reads = 0;
+	private long writes = 0;
+	private long bareReads = 0;
+
+	/**
+	 * Adds a device answering at an address
+	 * 
+	 * @param addr
+	 *            slave address, INA219_ADDR_GG..INA219_ADDR_LL
+	 */
+	public synchronized void addDevice(int addr) {
+		devices[index(addr)] = new Device();
+	}
+
+	/**
+	 * Removes a device, it no longer acknowledges its address
+	 * 
+	 * @param addr
+	 *            slave address
+	 */
+	public synchronized void removeDevice(int addr) {
+		devices[index(addr)] = null;
+	}
+
+	/**
+	 * Sets the analog inputs of a device, used from the next conversion
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param shunt_uV
+	 *            voltage across the shunt in uV
+	 * @param bus_mV
+	 *            bus voltage in mV
+	 */
+	public synchronized void setInput(int addr, int shunt_uV, int bus_mV) {
+		Device device = device(addr);
+		device.shunt_uV = shunt_uV;
+		device.bus_mV = bus_mV;
+	}
+
+	/**
+	 * Simulates a brown-out reset of a device
+	 * 
+	 * @param addr
+	 *            slave address
+	 */
+	public synchronized void reset(int addr) {
+		Device device = device(addr);
+		device.config = TiINA219Register.INA219_CONFIG_RESET;
+		device.calibration = 0;
+		device.shunt = 0;
+		device.bus = 0;
+		device.current = 0;
+		device.power = 0;
+		device.pointer = 0;
+		device.conversionStart_ns = System.nanoTime();
+	}
+
+	/**
+	 * Sets the time every transaction takes
+	 * 
+	 * @param latency_us
+	 *            time in us, e.g. about 500 for a register read at 100kHz
+	 */
+	public synchronized void setLatency_us(int latency_us) {
+		this.latency_ns = latency_us * 1000L;
+	}
+
+	/**
+	 * Gets the number of read transactions
+	 * 
+	 * @return
+	 */
+	public synchronized long getReadCount() {
+		return reads;
+	}
+
+	/**
+	 * Gets the number of write transactions
+	 * 
+	 * @return
+	 */
+	public synchronized long getWriteCount() {
+		return writes;
+	}
+
+	/**
+	 * Gets the number of read transactions without a register pointer write,
+	 * included in getReadCount()
+	 * 
+	 * @return
+	 */
+	public synchronized long getBareReadCount() {
+		return bareReads;
+	}
+
+	/**
+	 * Resets the transaction counters
+	 */
+	public synchronized void resetCounters() {
+		reads = 0;
+		writes = 0;
+		bareReads = 0;
+	}
+
+	/**
+	 * Gets a register of a device as the device holds it
+	 * 
+	 * @param addr
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @return 16-bit register value
+	 */
+	public synchronized int getRegister(int addr, int register) {
+		Device device = device(addr);
+		update(device, System.nanoTime());
+		return registerValue(device, register);
+	}
+
+	public void read(int address, int register, byte[] buffer, int start, int length) throws IOException {
+		delay();
+		synchronized (this) {
+			reads++;
+			Device device = acknowledge(address);
+			device.pointer = register;
+			transfer(device, buffer, start, length);
+		}
+	}
+
+	public void read(int address, byte[] buffer, int start, int length) throws IOException {
+		delay();
+		synchronized (this) {
+			reads++;
+			bareReads++;
+			transfer(acknowledge(address), buffer, start, length);
+		}
+	}
+
+	public void write(int address, int register, byte[] buffer, int start, int length) throws IOException {
+		delay();
+		synchronized (this) {
+			writes++;
+			Device device = acknowledge(address);
+			device.pointer = register;
+			if (length < 2) {
+				return;
+			}
+
+			int value = ((buffer[start] & 0xff) << 8) | (buffer[start + 1] & 0xff);
+			long now = System.nanoTime();
+			update(device, now);
+
+			if (register == TiINA219Register.INA219_REG_CONFIG) {
+				if ((value & 0x8000) != 0) {
+					// RST bit
+					reset(address);
+					return;
+				}
+				device.config = value;
+				device.bus &= ~TiINA219Register.INA219_BUSVOLTAGE_CNVR;
+				device.conversionStart_ns = now;
+			} else if (register == TiINA219Register.INA219_REG_CALIBRATION) {
+				device.calibration = value & TiINA219Calibration.CAL_MAX;
+			}
+		}
+	}
+
+	// Reads from the register pointer of the device
+	void transfer(Device device, byte[] buffer, int start, int length) {
+		update(device, System.nanoTime());
+
+		int value = registerValue(device, device.pointer);
+		if (length > 0) {
+			buffer[start] = (byte) (value >>> 8);
+		}
+		if (length > 1) {
+			buffer[start + 1] = (byte) value;
+		}
+
+		if (device.pointer == TiINA219Register.INA219_REG_POWER) {
+			device.bus &= ~TiINA219Register.INA219_BUSVOLTAGE_CNVR;
+		}
+	}
+
+	Device acknowledge(int address) throws IOException {
+		int i = address - TiINA219.INA219_ADDR_GG;
+		Device device = i >= 0 && i < devices.length ? devices[i] : null;
+		if (device == null) {
+			throw new IOException("I2C NAK at 0x" + Integer.toHexString(address));
+		}
+		return device;
+	}
+
+	private static int registerValue(Device device, int register) {
+		switch (register) {
+		case TiINA219Register.INA219_REG_CONFIG:
+			return device.config;
+		case TiINA219Register.INA219_REG_SHUNTVOLTAGE:
+			return device.shunt & 0xffff;
+		case TiINA219Register.INA219_REG_BUSVOLTAGE:
+			return device.bus;
+		case TiINA219Register.INA219_REG_POWER:
+			return device.power;
+		case TiINA219Register.INA219_REG_CURRENT:
+			return device.current & 0xffff;
+		case TiINA219Register.INA219_REG_CALIBRATION:
+			return device.calibration;
+		default:
+			return 0;
+		}
+	}
+
+	// Completes the conversions due at the given time
+	private static void update(Device device, long now) {
+		int mode = device.config & TiINA219.INA219_CONFIG_MODE_MASK;
+		if (device.conversionStart_ns < 0 || mode == TiINA219.INA219_CONFIG_MODE_POWERDOWN
+				|| mode == TiINA219.INA219_CONFIG_MODE_ADCOFF) {
+			return;
+		}
+
+		long conversion_ns = TiINA219.getConversionTime_us(device.config) * 1000L;
+		long elapsed = now - device.conversionStart_ns;
+		if (elapsed < conversion_ns) {
+			return;
+		}
+
+		convert(device, mode);
+
+		if ((mode & 0x4) != 0) {
+			// Continuous, the next conversion started when this one ended
+			device.conversionStart_ns += elapsed / conversion_ns * conversion_ns;
+		} else {
+			device.conversionStart_ns = -1;
+		}
+	}
+
+	private static void convert(Device device, int mode) {
+		int range = TiINA219Calibration.SHUNT_FULLSCALE_UV[(device.config & TiINA219.INA219_CONFIG_GAIN_MASK) >> 11];
+		boolean overflow = false;
+
+		if ((mode & TiINA219.INA219_CONFIG_MODE_SVOLT_TRIGGERED) != 0) {
+			int shunt_uV = device.shunt_uV;
+			if (shunt_uV > range) {
+				shunt_uV = range;
+				overflow = true;
+			} else if (shunt_uV < -range) {
+				shunt_uV = -range;
+				overflow = true;
+			}
+			device.shunt = shunt_uV / 10;
+		}
+
+		int bus = device.bus >> 3;
+		if ((mode & TiINA219.INA219_CONFIG_MODE_BVOLT_TRIGGERED) != 0) {
+			int fullScale = (device.config & TiINA219.INA219_CONFIG_BVOLTAGERANGE_MASK) != 0 ? 32000 : 16000;
+			int bus_mV = device.bus_mV < 0 ? 0 : device.bus_mV > fullScale ? fullScale : device.bus_mV;
+			bus = bus_mV / 4;
+		}
+
+		long current = (long) device.shunt * device.calibration / 4096;
+		if (current > 32767 || current < -32768) {
+			current = current > 0 ? 32767 : -32768;
+			overflow = true;
+		}
+		long power = Math.abs(current) * bus / 5000;
+		if (power > 65535) {
+			power = 65535;
+			overflow = true;
+		}
+
+		device.current = (int) current;
+		device.power = (int) power;
+		device.bus = (bus << 3) | TiINA219Register.INA219_BUSVOLTAGE_CNVR
+				| (overflow ? TiINA219Register.INA219_BUSVOLTAGE_OVF : 0);
+	}
+
+	private void delay() {
+		long latency;
+		synchronized (this) {
+			latency = latency_ns;
+		}
+		if (latency <= 0) {
+			return;
+		}
+
+		// Busy wait, sleeping is far too coarse for bus timings
+		long end = System.nanoTime() + latency;
+		while (System.nanoTime() < end) {
+			// spin
+		}
+	}
+
+	private Device device(int addr) {
+		Device device = devices[index(addr)];
+		if (device == null) {
+			throw new IllegalArgumentException("No simulated device at " + addr);
+		}
+		return device;
+	}
+
+	private static int index(int addr) {
+		int i = addr - TiINA219.INA219_ADDR_GG;
+		if (i < 0 || i >= TiINA219Array.DEVICE_COUNT) {
+			throw new IllegalArgumentException("Invalid INA219 address " + addr);
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,226 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Mutable holder for one coherent set of INA219 readings, filled by
+ * TiINA219.readSnapshot(). Shunt, bus, current and power are read back to back
+ * under one bus lock so they belong to the same conversion. The holder is meant
+ * to be reused to avoid garbage while sampling.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Snapshot {
+
+	// Channels of a snapshot, see getChannel_raw()
+	public static final int CHANNEL_SHUNT = 0;
+	public static final int CHANNEL_BUS = 1;
+	public static final int CHANNEL_CURRENT = 2;
+	public static final int CHANNEL_POWER = 3;
+	public static final int CHANNEL_COUNT = 4;
+
+	// Time of the read in microseconds, see TiINA219.now_us()
+	long timestamp_us;
+
+	// Raw register values
+	int shuntRaw;
+	int busRegister;
+	int currentRaw;
+	int powerRaw;
+
+	// Calibration of the device at the time of the read
+	TiINA219Calibration calibration;
+
+	/**
+	 * Copies all values of another snapshot into this one
+	 * 
+	 * @param other
+	 *            snapshot to copy
+	 */
+	public void copyFrom(TiINA219Snapshot other) {
+		timestamp_us = other.timestamp_us;
+		shuntRaw = other.shuntRaw;
+		busRegister = other.busRegister;
+		currentRaw = other.currentRaw;
+		powerRaw = other.powerRaw;
+		calibration = other.calibration;
+	}
+
+	/**
+	 * Gets the time the snapshot was read
+	 * 
+	 * @return timestamp in microseconds
+	 */
+	public long getTimestamp_us() {
+		return timestamp_us;
+	}
+
+	/**
+	 * Gets the raw shunt voltage (16-bit signed integer, so +-32767)
+	 * 
+	 * @return
+	 */
+	public int getShuntVoltage_raw() {
+		return shuntRaw;
+	}
+
+	/**
+	 * Gets the bus voltage register including the CNVR and OVF bits
+	 * 
+	 * @return
+	 */
+	public int getBusVoltage_register() {
+		return busRegister;
+	}
+
+	/**
+	 * Gets the raw bus voltage in LSB of 1mV, CNVR and OVF dropped
+	 * 
+	 * @return
+	 */
+	public int getBusVoltage_raw() {
+		return (busRegister >> 3) * 4;
+	}
+
+	/**
+	 * Gets the raw current value (16-bit signed integer, so +-32767)
+	 * 
+	 * @return
+	 */
+	public int getCurrent_raw() {
+		return currentRaw;
+	}
+
+	/**
+	 * Gets the raw power value (16-bit unsigned integer)
+	 * 
+	 * @return
+	 */
+	public int getPower_raw() {
+		return powerRaw;
+	}
+
+	/**
+	 * Gets the raw value of a channel: shunt voltage (10uV per bit), bus
+	 * voltage (1mV per bit), current or power register
+	 * 
+	 * @param channel
+	 *            one of the CHANNEL_* values
+	 * @return
+	 */
+	public int getChannel_raw(int channel) {
+		switch (channel) {
+		case CHANNEL_SHUNT:
+			return shuntRaw;
+		case CHANNEL_BUS:
+			return getBusVoltage_raw();
+		case CHANNEL_CURRENT:
+			return currentRaw;
+		case CHANNEL_POWER:
+			return powerRaw;
+		default:
+			throw new IllegalArgumentException("Invalid channel " + channel);
+		}
+	}
+
+	/**
+	 * Conversion ready flag (CNVR) of the bus voltage register
+	 * 
+	 * @return true if a new conversion was available when read
+	 */
+	public boolean isConversionReady() {
+		return (busRegister & TiINA219Register.INA219_BUSVOLTAGE_CNVR) != 0;
+	}
+
+	/**
+	 * Math overflow flag (OVF) of the bus voltage register
+	 * 
+	 * @return true if current or power calculation is out of range
+	 */
+	public boolean isOverflow() {
+		return (busRegister & TiINA219Register.INA219_BUSVOLTAGE_OVF) != 0;
+	}
+
+	/**
+	 * Gets the shunt voltage in mV
+	 * 
+	 * @return
+	 */
+	public double getShuntVoltage_mV() {
+		return getShuntVoltage_uV() * 0.001;
+	}
+
+	/**
+	 * Gets the shunt voltage in uV using integer arithmetic only
+	 * 
+	 * @return
+	 */
+	public int getShuntVoltage_uV() {
+		return shuntRaw * 10;
+	}
+
+	/**
+	 * Gets the bus voltage in volts
+	 * 
+	 * @return
+	 */
+	public double getBusVoltage_V() {
+		return getBusVoltage_mV() * 0.001;
+	}
+
+	/**
+	 * Gets the bus voltage in mV using integer arithmetic only
+	 * 
+	 * @return
+	 */
+	public int getBusVoltage_mV() {
+		return getBusVoltage_raw();
+	}
+
+	/**
+	 * Gets the current value in mA
+	 * 
+	 * @return
+	 */
+	public double getCurrent_mA() {
+		return getCurrent_uA() * 0.001;
+	}
+
+	/**
+	 * Gets the current value in uA using integer arithmetic only
+	 * 
+	 * @return
+	 */
+	public int getCurrent_uA() {
+		return getCalibration().toCurrent_uA(currentRaw);
+	}
+
+	/**
+	 * Gets the power value in mW
+	 * 
+	 * @return
+	 */
+	public double getPower_mW() {
+		return getPower_uW() * 0.001;
+	}
+
+	/**
+	 * Gets the power value in uW using integer arithmetic only
+	 * 
+	 * @return
+	 */
+	public long getPower_uW() {
+		return getCalibration().toPower_uW(powerRaw);
+	}
+
+	/**
+	 * Gets the calibration the CURRENT and POWER values were computed with
+	 * 
+	 * @return
+	 */
+	public TiINA219Calibration getCalibration() {
+		if (calibration == null) {
+			throw new IllegalStateException("INA219 is not calibrated");
+		}
+		return calibration;
+	}
+
+}
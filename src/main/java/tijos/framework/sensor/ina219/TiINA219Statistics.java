@@ -0,0 +1,366 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Constant memory streaming statistics of the four snapshot channels over a
+ * window of samples: min, max, mean, RMS, variance and approximate
+ * percentiles from a fixed-bin histogram. Values are the raw channel values
+ * of TiINA219Snapshot.getChannel_raw(), convert the results with the
+ * calibration of the device.
+ * 
+ * A TUMBLING window reports each block of windowSize samples once, a SLIDING
+ * window always covers the last windowSize samples. Attach it to a sampler
+ * as listener.
+ * 
+ * @author TiJOS
+ */
+public class TiINA219Statistics implements TiINA219SampleListener {
+
+	// Consecutive, non overlapping windows
+	public static final int TUMBLING = 0;
+	// Window over the last samples
+	public static final int SLIDING = 1;
+
+	// Histogram bins per channel for the percentiles
+	static final int BINS = 64;
+
+	private static final int CHANNELS = TiINA219Snapshot.CHANNEL_COUNT;
+
+	/**
+	 * Accumulators of one window
+	 */
+	static class Window {
+		long count;
+		int[] min = new int[CHANNELS];
+		int[] max = new int[CHANNELS];
+		long[] sum = new long[CHANNELS];
+		long[] sumSquares = new long[CHANNELS];
+		int[][] histogram = new int[CHANNELS][BINS];
+
+		void clear() {
+			count = 0;
+			for (int ch = 0; ch < CHANNELS; ch++) {
+				min[ch] = Integer.MAX_VALUE;
+				max[ch] = Integer.MIN_VALUE;
+				sum[ch] = 0;
+				sumSquares[ch] = 0;
+				int[] bins = histogram[ch];
+				for (int b = 0; b < BINS; b++) {
+					bins[b] = 0;
+				}
+			}
+		}
+	}
+
+	private int windowSize;
+	private int kind;
+
+	// Histogram range of each channel
+	private int[] rangeMin = { -32768, 0, -32768, 0 };
+	private int[] rangeMax = { 32767, 32767, 32767, 65535 };
+
+	// Window being filled and last completed window (same for SLIDING)
+	private Window live = new Window();
+	private Window result;
+	private long windows = 0;
+
+	// Samples in the window, SLIDING only
+	private int[][] values;
+	private int next = 0;
+
+	private TiINA219StatisticsListener listener;
+
+	/**
+	 * Initialize the statistics
+	 * 
+	 * @param windowSize
+	 *            number of samples per window
+	 * @param kind
+	 *            TUMBLING or SLIDING
+	 */
+	public TiINA219Statistics(int windowSize, int kind) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("Invalid window size " + windowSize);
+		}
+		if (kind != TUMBLING && kind != SLIDING) {
+			throw new IllegalArgumentException("Invalid window kind " + kind);
+		}
+
+		this.windowSize = windowSize;
+		this.kind = kind;
+
+		live.clear();
+		if (kind == TUMBLING) {
+			result = new Window();
+			result.clear();
+		} else {
+			result = live;
+			values = new int[CHANNELS][windowSize];
+		}
+	}
+
+	/**
+	 * Sets the listener called for every completed TUMBLING window
+	 * 
+	 * @param listener
+	 */
+	public synchronized void setListener(TiINA219StatisticsListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the range of raw values covered by the percentile histogram of a
+	 * channel, values outside are counted in the first or last bin. A range
+	 * close to the real signal gives more accurate percentiles.
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @param min
+	 *            lowest raw value
+	 * @param max
+	 *            highest raw value
+	 */
+	public synchronized void setRange(int channel, int min, int max) {
+		checkChannel(channel);
+		if (max <= min) {
+			throw new IllegalArgumentException("Invalid range " + min + ".." + max);
+		}
+
+		rangeMin[channel] = min;
+		rangeMax[channel] = max;
+		reset();
+	}
+
+	/**
+	 * Discards all samples
+	 */
+	public synchronized void reset() {
+		live.clear();
+		result.clear();
+		next = 0;
+	}
+
+	public synchronized void onSample(TiINA219 sensor, TiINA219Snapshot snapshot) {
+		if (kind == SLIDING && live.count == windowSize) {
+			// Evict the oldest sample first
+			for (int ch = 0; ch < CHANNELS; ch++) {
+				remove(ch, values[ch][next]);
+			}
+			live.count--;
+		}
+
+		for (int ch = 0; ch < CHANNELS; ch++) {
+			int value = snapshot.getChannel_raw(ch);
+			add(ch, value);
+			if (kind == SLIDING) {
+				values[ch][next] = value;
+			}
+		}
+		live.count++;
+
+		if (kind == SLIDING) {
+			next = (next + 1) % windowSize;
+			return;
+		}
+
+		if (live.count == windowSize) {
+			Window done = live;
+			live = result;
+			result = done;
+			live.clear();
+			windows++;
+
+			if (listener != null) {
+				listener.onWindow(this);
+			}
+		}
+	}
+
+	private void add(int ch, int value) {
+		if (value < live.min[ch]) {
+			live.min[ch] = value;
+		}
+		if (value > live.max[ch]) {
+			live.max[ch] = value;
+		}
+		live.sum[ch] += value;
+		live.sumSquares[ch] += (long) value * value;
+		live.histogram[ch][bin(ch, value)]++;
+	}
+
+	private void remove(int ch, int value) {
+		live.sum[ch] -= value;
+		live.sumSquares[ch] -= (long) value * value;
+		live.histogram[ch][bin(ch, value)]--;
+
+		if (value == live.min[ch] || value == live.max[ch]) {
+			// The extreme left the window, rescan the remaining samples
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			int[] samples = values[ch];
+			for (int i = 1; i < windowSize; i++) {
+				int v = samples[(next + i) % windowSize];
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+			live.min[ch] = min;
+			live.max[ch] = max;
+		}
+	}
+
+	private int bin(int ch, int value) {
+		if (value <= rangeMin[ch]) {
+			return 0;
+		}
+		if (value >= rangeMax[ch]) {
+			return BINS - 1;
+		}
+		return (int) ((long) (value - rangeMin[ch]) * BINS / ((long) rangeMax[ch] - rangeMin[ch] + 1));
+	}
+
+	/**
+	 * Gets the number of completed TUMBLING windows
+	 * 
+	 * @return
+	 */
+	public synchronized long getWindowCount() {
+		return windows;
+	}
+
+	/**
+	 * Gets the number of samples of the reported window
+	 * 
+	 * @return
+	 */
+	public synchronized long getCount() {
+		return result.count;
+	}
+
+	/**
+	 * Gets the smallest raw value of a channel
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @return
+	 */
+	public synchronized int getMin(int channel) {
+		checkChannel(channel);
+		return result.min[channel];
+	}
+
+	/**
+	 * Gets the largest raw value of a channel
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @return
+	 */
+	public synchronized int getMax(int channel) {
+		checkChannel(channel);
+		return result.max[channel];
+	}
+
+	/**
+	 * Gets the mean raw value of a channel
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @return 0 if the window is empty
+	 */
+	public synchronized double getMean(int channel) {
+		checkChannel(channel);
+		if (result.count == 0) {
+			return 0;
+		}
+		return (double) result.sum[channel] / result.count;
+	}
+
+	/**
+	 * Gets the root mean square of the raw values of a channel
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @return 0 if the window is empty
+	 */
+	public synchronized double getRms(int channel) {
+		checkChannel(channel);
+		if (result.count == 0) {
+			return 0;
+		}
+		return Math.sqrt((double) result.sumSquares[channel] / result.count);
+	}
+
+	/**
+	 * Gets the population variance of the raw values of a channel
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @return 0 if the window is empty
+	 */
+	public synchronized double getVariance(int channel) {
+		checkChannel(channel);
+		if (result.count == 0) {
+			return 0;
+		}
+		double mean = (double) result.sum[channel] / result.count;
+		double variance = (double) result.sumSquares[channel] / result.count - mean * mean;
+		return variance < 0 ? 0 : variance;
+	}
+
+	/**
+	 * Gets an approximate percentile of the raw values of a channel,
+	 * interpolated in the histogram bin and clamped to min and max
+	 * 
+	 * @param channel
+	 *            one of the TiINA219Snapshot.CHANNEL_* values
+	 * @param percent
+	 *            0..100
+	 * @return 0 if the window is empty
+	 */
+	public synchronized int getPercentile(int channel, int percent) {
+		checkChannel(channel);
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("Invalid percentile " + percent);
+		}
+		if (result.count == 0) {
+			return 0;
+		}
+
+		long rank = (result.count * percent + 99) / 100;
+		if (rank == 0) {
+			rank = 1;
+		}
+
+		int[] bins = result.histogram[channel];
+		long width = (long) rangeMax[channel] - rangeMin[channel] + 1;
+		long seen = 0;
+		int b = 0;
+		while (b < BINS - 1 && seen + bins[b] < rank) {
+			seen += bins[b];
+			b++;
+		}
+
+		// Linear interpolation inside the bin
+		long low = rangeMin[channel] + width * b / BINS;
+		long high = rangeMin[channel] + width * (b + 1) / BINS - 1;
+		long value = bins[b] == 0 ? low : low + (high - low) * (rank - seen) / bins[b];
+
+		if (value < result.min[channel]) {
+			value = result.min[channel];
+		}
+		if (value > result.max[channel]) {
+			value = result.max[channel];
+		}
+		return (int) value;
+	}
+
+	private static void checkChannel(int channel) {
+		if (channel < 0 || channel >= CHANNELS) {
+			throw new IllegalArgumentException("Invalid channel " + channel);
+		}
+	}
+
+}
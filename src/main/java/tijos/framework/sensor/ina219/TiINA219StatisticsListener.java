@@ -0,0 +1,19 @@
+package tijos.framework.sensor.ina219;
+
+/**
+ * Receives the statistics of every completed tumbling window
+ * 
+ * @author TiJOS
+ */
+public interface TiINA219StatisticsListener {
+
+	/**
+	 * Called from the sampling thread when a window is complete, the getters
+	 * of stats return the values of this window
+	 * 
+	 * @param stats
+	 *            the statistics, only consistent during the call
+	 */
+	void onWindow(TiINA219Statistics stats);
+
+}
@@ -0,0 +1,370 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Transient capture on the shunt voltage, to catch inrush and short-circuit
+ * events that periodic polling never sees. While running, the device converts
+ * the shunt voltage only at the fastest setting (9-bit, 84us) and the shunt
+ * register is read as fast as the bus allows into a circular pre-trigger
+ * buffer. When the level or slope trigger fires, preTrigger samples before
+ * the event and postTrigger samples after it are frozen for retrieval with
+ * readCapture(), which also re-arms the trigger.
+ * 
+ * Repeated shunt reads can use bare read transactions if enabled with
+ * TiINA219Bus.setPointerTracking().
+ * 
+ * @author TiJOS
+ */
+public class TiINA219TransientCapture implements Runnable {
+
+	// Triggers
+	public static final int TRIGGER_ABOVE = 0;
+	public static final int TRIGGER_BELOW = 1;
+	public static final int TRIGGER_SLOPE = 2;
+
+	// States
+	public static final int STATE_ARMED = 0;
+	public static final int STATE_TRIGGERED = 1;
+	public static final int STATE_FROZEN = 2;
+
+	// Config bits changed while capturing
+	private static final int CONFIG_MASK = TiINA219.INA219_CONFIG_SADCRES_MASK | TiINA219.INA219_CONFIG_MODE_MASK;
+	private static final int CONFIG_CAPTURE = TiINA219.INA219_CONFIG_SADCRES_9BIT_1S_84US
+			| TiINA219.INA219_CONFIG_MODE_SVOLT_CONTINUOUS;
+
+	private TiINA219 sensor;
+	private int preTrigger;
+	private int postTrigger;
+
+	private int trigger = TRIGGER_ABOVE;
+	private int threshold_raw = Integer.MAX_VALUE;
+
+	// Pre-trigger ring of raw shunt values and timestamps
+	private int[] ring;
+	private long[] ringTime;
+	private int head = 0;
+	private int filled = 0;
+
+	private volatile int state = STATE_ARMED;
+	private int remaining;
+	private int previous;
+	private boolean hasPrevious = false;
+
+	// Frozen window, guarded by this
+	private int[] capture;
+	private long[] captureTime;
+	private int captureLength = 0;
+	private int captureTrigger = 0;
+
+	private long samples = 0;
+	private int captures = 0;
+	private int errors = 0;
+
+	private int savedConfig;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Initialize the capture
+	 * 
+	 * @param sensor
+	 *            device to capture from
+	 * @param preTrigger
+	 *            samples kept before the trigger
+	 * @param postTrigger
+	 *            samples captured after the trigger
+	 */
+	public TiINA219TransientCapture(TiINA219 sensor, int preTrigger, int postTrigger) {
+		if (preTrigger < 0 || postTrigger < 0) {
+			throw new IllegalArgumentException("Invalid window " + preTrigger + " " + postTrigger);
+		}
+
+		this.sensor = sensor;
+		this.preTrigger = preTrigger;
+		this.postTrigger = postTrigger;
+
+		int window = preTrigger + 1 + postTrigger;
+		ring = new int[window];
+		ringTime = new long[window];
+		capture = new int[window];
+		captureTime = new long[window];
+	}
+
+	/**
+	 * Fires when the shunt voltage crosses a level
+	 * 
+	 * @param level_uV
+	 *            level in uV, rounded to the 10uV shunt LSB
+	 * @param rising
+	 *            true to fire when the voltage rises above the level, false
+	 *            when it falls below
+	 */
+	public synchronized void setLevelTrigger(int level_uV, boolean rising) {
+		this.trigger = rising ? TRIGGER_ABOVE : TRIGGER_BELOW;
+		// Nearest shunt LSB of 10uV
+		this.threshold_raw = (int) Math.floor(level_uV / 10.0 + 0.5);
+	}
+
+	/**
+	 * Fires when the shunt voltage changes by at least a step between two
+	 * consecutive samples, in either direction
+	 * 
+	 * @param step_uV
+	 *            step in uV, rounded up to the 10uV shunt LSB
+	 */
+	public synchronized void setSlopeTrigger(int step_uV) {
+		if (step_uV <= 0) {
+			throw new IllegalArgumentException("Invalid step " + step_uV);
+		}
+
+		this.trigger = TRIGGER_SLOPE;
+		// At least one shunt LSB of 10uV, a zero step would fire on every
+		// sample
+		this.threshold_raw = (step_uV + 9) / 10;
+	}
+
+	/**
+	 * Switches the device to fast shunt-only conversions and starts the
+	 * capture thread
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+
+		savedConfig = sensor.modifyConfig(CONFIG_MASK, CONFIG_CAPTURE);
+		head = 0;
+		filled = 0;
+		hasPrevious = false;
+		state = STATE_ARMED;
+
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops the capture thread, waits for it to terminate and restores the
+	 * previous ADC settings and mode
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void stop() throws InterruptedException, IOException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+			sensor.modifyConfig(CONFIG_MASK, savedConfig);
+		}
+	}
+
+	/**
+	 * Gets the capture state
+	 * 
+	 * @return STATE_ARMED, STATE_TRIGGERED or STATE_FROZEN
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * Waits until a window has been frozen
+	 * 
+	 * @param timeout_ms
+	 *            maximum time to wait, 0 to wait forever
+	 * @return true if a window is ready for readCapture()
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitCapture(int timeout_ms) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout_ms;
+		while (state != STATE_FROZEN) {
+			if (timeout_ms == 0) {
+				wait();
+				continue;
+			}
+
+			long delay = deadline - System.currentTimeMillis();
+			if (delay <= 0) {
+				return false;
+			}
+			wait(delay);
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the frozen window and re-arms the trigger
+	 * 
+	 * @param shunt_uV
+	 *            destination of the shunt voltages in uV
+	 * @param timestamps
+	 *            destination of the timestamps in us, may be null
+	 * @return number of samples copied, 0 if no window is frozen
+	 */
+	public synchronized int readCapture(int[] shunt_uV, long[] timestamps) {
+		if (state != STATE_FROZEN) {
+			return 0;
+		}
+
+		int length = Math.min(captureLength, shunt_uV.length);
+		if (timestamps != null) {
+			length = Math.min(length, timestamps.length);
+		}
+
+		for (int i = 0; i < length; i++) {
+			shunt_uV[i] = capture[i] * 10;
+			if (timestamps != null) {
+				timestamps[i] = captureTime[i];
+			}
+		}
+
+		state = STATE_ARMED;
+		return length;
+	}
+
+	/**
+	 * Gets the index of the trigger sample in the last frozen window, less
+	 * than preTrigger if the buffer was not full when the trigger fired
+	 * 
+	 * @return
+	 */
+	public synchronized int getTriggerIndex() {
+		return captureTrigger;
+	}
+
+	/**
+	 * Gets the number of samples read
+	 * 
+	 * @return
+	 */
+	public long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * Gets the number of windows frozen
+	 * 
+	 * @return
+	 */
+	public int getCaptureCount() {
+		return captures;
+	}
+
+	/**
+	 * Gets the number of failed reads
+	 * 
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Capture loop
+	 */
+	public void run() {
+		int consecutiveErrors = 0;
+		while (running) {
+			int raw;
+			long timestamp;
+			try {
+				raw = sensor.getShuntVoltage_raw();
+				timestamp = TiINA219.now_us();
+				consecutiveErrors = 0;
+			} catch (IOException e) {
+				if (!running) {
+					break;
+				}
+				errors++;
+				// No slope across a gap
+				hasPrevious = false;
+
+				try {
+					TiINA219.errorBackoff(sensor.getConversionTime_us(), ++consecutiveErrors);
+				} catch (InterruptedIOException ie) {
+					// stop() requested
+				}
+				continue;
+			}
+
+			ring[head] = raw;
+			ringTime[head] = timestamp;
+			head = (head + 1) % ring.length;
+			if (filled < ring.length) {
+				filled++;
+			}
+			samples++;
+
+			int s = state;
+			if (s == STATE_ARMED) {
+				if (fires(raw)) {
+					remaining = postTrigger;
+					if (remaining == 0) {
+						freeze();
+					} else {
+						state = STATE_TRIGGERED;
+					}
+				}
+			} else if (s == STATE_TRIGGERED) {
+				if (--remaining == 0) {
+					freeze();
+				}
+			}
+
+			previous = raw;
+			hasPrevious = true;
+
+			Thread.yield();
+		}
+	}
+
+	private boolean fires(int raw) {
+		int threshold;
+		int mode;
+		synchronized (this) {
+			threshold = threshold_raw;
+			mode = trigger;
+		}
+
+		if (!hasPrevious) {
+			return false;
+		}
+
+		switch (mode) {
+		case TRIGGER_BELOW:
+			return previous > threshold && raw <= threshold;
+		case TRIGGER_SLOPE:
+			return Math.abs(raw - previous) >= threshold;
+		default:
+			return previous < threshold && raw >= threshold;
+		}
+	}
+
+	// Copies the window ending at the latest sample, oldest first
+	private synchronized void freeze() {
+		int length = Math.min(filled, ring.length);
+		int start = (head - length + ring.length) % ring.length;
+		for (int i = 0; i < length; i++) {
+			int j = (start + i) % ring.length;
+			capture[i] = ring[j];
+			captureTime[i] = ringTime[j];
+		}
+
+		captureLength = length;
+		captureTrigger = length - 1 - postTrigger;
+		captures++;
+		state = STATE_FROZEN;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,64 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+/**
+ * Register level access to the I2C bus used by the INA219 driver. The
+ * TiI2CMasterTransport adapter is used on the device, TiINA219Simulator
+ * allows running the driver without hardware.
+ * 
+ * @author TiJOS
+ */
+public interface TiINA219Transport {
+
+	/**
+	 * Writes the register pointer then reads from the device
+	 * 
+	 * @param address
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @param buffer
+	 *            destination
+	 * @param start
+	 *            first index to write in buffer
+	 * @param length
+	 *            number of bytes to read
+	 * @throws IOException
+	 */
+	void read(int address, int register, byte[] buffer, int start, int length) throws IOException;
+
+	/**
+	 * Reads from the device at its current register pointer, without writing
+	 * the pointer
+	 * 
+	 * @param address
+	 *            slave address
+	 * @param buffer
+	 *            destination
+	 * @param start
+	 *            first index to write in buffer
+	 * @param length
+	 *            number of bytes to read
+	 * @throws IOException
+	 */
+	void read(int address, byte[] buffer, int start, int length) throws IOException;
+
+	/**
+	 * Writes to a register of the device
+	 * 
+	 * @param address
+	 *            slave address
+	 * @param register
+	 *            register address
+	 * @param buffer
+	 *            source
+	 * @param start
+	 *            first index to read in buffer
+	 * @param length
+	 *            number of bytes to write
+	 * @throws IOException
+	 */
+	void write(int address, int register, byte[] buffer, int start, int length) throws IOException;
+
+}
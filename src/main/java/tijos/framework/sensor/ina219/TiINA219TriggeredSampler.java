@@ -0,0 +1,126 @@
+package tijos.framework.sensor.ina219;
+
+import java.io.IOException;
+
+/**
+ * Low duty cycle sampler for battery powered nodes. At every period a single
+ * conversion is triggered, read and the device is powered down again, see
+ * TiINA219.readTriggered().
+ * 
+ * @author TiJOS
+ */
+public class TiINA219TriggeredSampler implements Runnable {
+
+	private TiINA219 sensor;
+	private TiINA219SampleListener listener;
+	private int period_ms;
+
+	private TiINA219Snapshot snapshot = new TiINA219Snapshot();
+	private int errors = 0;
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Initialize the sampler
+	 * 
+	 * @param sensor
+	 *            device to sample
+	 * @param period_ms
+	 *            sampling period in ms
+	 * @param listener
+	 *            receives every snapshot
+	 */
+	public TiINA219TriggeredSampler(TiINA219 sensor, int period_ms, TiINA219SampleListener listener) {
+		if (period_ms <= 0) {
+			throw new IllegalArgumentException("Invalid period " + period_ms);
+		}
+
+		this.sensor = sensor;
+		this.period_ms = period_ms;
+		this.listener = listener;
+	}
+
+	/**
+	 * Gets the number of failed samples
+	 * 
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Powers the device down and starts the sampling thread
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+
+		sensor.setMode(TiINA219.INA219_CONFIG_MODE_POWERDOWN);
+
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops the sampling thread and waits for it to terminate, the device
+	 * stays powered down
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	/**
+	 * Sampling loop at a fixed rate
+	 */
+	public void run() {
+		long next = System.currentTimeMillis();
+
+		while (running) {
+			// A conversion not done within one period is lost, unless the
+			// conversion itself is longer than the period
+			int timeout_ms = Math.max(period_ms, 10 + 2 * sensor.getTriggeredConversionTime_us() / 1000);
+
+			try {
+				sensor.readTriggered(snapshot, timeout_ms);
+				listener.onSample(sensor, snapshot);
+			} catch (IOException e) {
+				if (!running) {
+					break;
+				}
+				errors++;
+			}
+
+			next += period_ms;
+			long delay = next - System.currentTimeMillis();
+			if (delay <= 0) {
+				// Behind schedule, do not try to catch up
+				next = System.currentTimeMillis();
+				continue;
+			}
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				// stop() requested
+			}
+		}
+	}
+
+}
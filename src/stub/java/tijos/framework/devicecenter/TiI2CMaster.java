@@ -0,0 +1,32 @@
+package tijos.framework.devicecenter;
+
+import java.io.IOException;
+
+/**
+ * Compile-time stand-in for the TiJOS I2C master, only built by the jmh and
+ * simulator profiles so the driver compiles on a desktop JVM. Benchmarks and
+ * tests use TiINA219Simulator, every transaction here fails.
+ */
+public class TiI2CMaster {
+
+	public static TiI2CMaster open(int port) throws IOException {
+		throw new IOException("TiI2CMaster is not available off-target");
+	}
+
+	public void read(int address, byte[] buffer, int start, int length) throws IOException {
+		throw new IOException("TiI2CMaster is not available off-target");
+	}
+
+	public void read(int address, int regAddr, byte[] buffer, int start, int length) throws IOException {
+		throw new IOException("TiI2CMaster is not available off-target");
+	}
+
+	public void write(int address, byte[] buffer, int start, int length) throws IOException {
+		throw new IOException("TiI2CMaster is not available off-target");
+	}
+
+	public void write(int address, int regAddr, byte[] buffer, int start, int length) throws IOException {
+		throw new IOException("TiI2CMaster is not available off-target");
+	}
+
+}
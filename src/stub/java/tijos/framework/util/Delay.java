@@ -0,0 +1,17 @@
+package tijos.framework.util;
+
+/**
+ * Compile-time stand-in for the TiJOS delay utility, only built by the jmh and
+ * simulator profiles so the sources compile on a desktop JVM.
+ */
+public class Delay {
+
+	public static void msDelay(int ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package tijos.framework.sensor.ina219;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks of the sample listeners fed with synthetic snapshots, run with mvn -P
+ * simulator test
+ *
+ * @author TiJOS
+ */
+public class TiINA219ListenerTest {
+
+	// 100uA current LSB, 2000uW power LSB
+	static final TiINA219Calibration CALIBRATION = TiINA219Calibration.withCurrentLSB(100000, 100,
+			TiINA219.INA219_CONFIG_BVOLTAGERANGE_32V, TiINA219.INA219_CONFIG_GAIN_8_320MV,
+			TiINA219.INA219_CONFIG_BADCRES_12BIT, TiINA219.INA219_CONFIG_SADCRES_12BIT_1S_532US);
+
+	TiINA219Snapshot snapshot = new TiINA219Snapshot();
+
+	@Test
+	public void accumulatorIntegratesChargeAndEnergy() {
+		TiINA219EnergyAccumulator accumulator = new TiINA219EnergyAccumulator();
+		accumulator.setMaxGap_ms(10);
+
+		// 100mA at 12V for 1s, one sample per ms
+		for (int i = 0; i <= 1000; i++) {
+			sample(i * 1000L, 0, 1000, 600);
+			accumulator.onSample(null, snapshot);
+		}
+		assertEquals(100000, accumulator.getCharge_uC());
+		assertEquals(1200000, accumulator.getEnergy_uJ());
+		assertEquals(1000000, accumulator.getElapsed_us());
+		assertEquals(0, accumulator.getGapCount());
+
+		// Not integrated over a gap
+		sample(2000000L, 0, 1000, 600);
+		accumulator.onSample(null, snapshot);
+		assertEquals(100000, accumulator.getCharge_uC());
+		assertEquals(1, accumulator.getGapCount());
+
+		TiINA219EnergyAccumulator interval = new TiINA219EnergyAccumulator();
+		accumulator.snapshot(interval, true);
+		assertEquals(100000, interval.getCharge_uC());
+		assertEquals(1002, interval.getSampleCount());
+		assertEquals(0, accumulator.getCharge_uC());
+	}
+
+	@Test
+	public void accumulatorKeepsSubUnitRemainders() {
+		TiINA219EnergyAccumulator accumulator = new TiINA219EnergyAccumulator();
+
+		// 100uA for 10us per interval is 0.001uC, 1uC after 1000 intervals
+		for (int i = 0; i <= 1000; i++) {
+			sample(i * 10L, 0, 1, 0);
+			accumulator.onSample(null, snapshot);
+		}
+		assertEquals(1, accumulator.getCharge_uC());
+	}
+
+	@Test
+	public void tumblingWindowReportsEachBlockOnce() {
+		TiINA219Statistics stats = new TiINA219Statistics(4, TiINA219Statistics.TUMBLING);
+		final double[] means = new double[2];
+		final int[] windows = new int[1];
+		stats.setListener(new TiINA219StatisticsListener() {
+			public void onWindow(TiINA219Statistics stats) {
+				means[windows[0]++] = stats.getMean(TiINA219Snapshot.CHANNEL_SHUNT);
+			}
+		});
+
+		for (int i = 1; i <= 9; i++) {
+			sample(i, i, 0, 0);
+			stats.onSample(null, snapshot);
+		}
+
+		assertEquals(2, windows[0]);
+		assertEquals(2.5, means[0], 0);
+		assertEquals(6.5, means[1], 0);
+		assertEquals(2, stats.getWindowCount());
+		assertEquals(4, stats.getCount());
+		assertEquals(5, stats.getMin(TiINA219Snapshot.CHANNEL_SHUNT));
+		assertEquals(8, stats.getMax(TiINA219Snapshot.CHANNEL_SHUNT));
+		assertEquals(1.25, stats.getVariance(TiINA219Snapshot.CHANNEL_SHUNT), 1e-9);
+	}
+
+	@Test
+	public void slidingWindowEvictsOldestSample() {
+		TiINA219Statistics stats = new TiINA219Statistics(3, TiINA219Statistics.SLIDING);
+
+		int[] values = { 5, 1, 9, 2, 7 };
+		for (int i = 0; i < values.length; i++) {
+			sample(i, values[i], 0, 0);
+			stats.onSample(null, snapshot);
+		}
+
+		// Window holds 9, 2, 7 after 5 and 1 left
+		assertEquals(3, stats.getCount());
+		assertEquals(2, stats.getMin(TiINA219Snapshot.CHANNEL_SHUNT));
+		assertEquals(9, stats.getMax(TiINA219Snapshot.CHANNEL_SHUNT));
+		assertEquals(6.0, stats.getMean(TiINA219Snapshot.CHANNEL_SHUNT), 0);
+	}
+
+	@Test
+	public void percentileFollowsDistribution() {
+		TiINA219Statistics stats = new TiINA219Statistics(1000, TiINA219Statistics.SLIDING);
+		stats.setRange(TiINA219Snapshot.CHANNEL_SHUNT, 0, 999);
+
+		for (int i = 0; i < 1000; i++) {
+			sample(i, i, 0, 0);
+			stats.onSample(null, snapshot);
+		}
+
+		assertEquals(0, stats.getPercentile(TiINA219Snapshot.CHANNEL_SHUNT, 0));
+		assertEquals(499, stats.getPercentile(TiINA219Snapshot.CHANNEL_SHUNT, 50), 16);
+		assertEquals(989, stats.getPercentile(TiINA219Snapshot.CHANNEL_SHUNT, 99), 16);
+		assertEquals(999, stats.getPercentile(TiINA219Snapshot.CHANNEL_SHUNT, 100));
+	}
+
+	@Test
+	public void alertDebouncesWithHysteresis() throws Exception {
+		final int[] events = new int[8];
+		final int[] eventCount = new int[1];
+		TiINA219AlertEngine engine = new TiINA219AlertEngine(new TiINA219AlertListener() {
+			public void onAlert(int rule, boolean active, int value, long timestamp_us) {
+				synchronized (eventCount) {
+					events[eventCount[0]++] = active ? value : -value;
+					eventCount.notifyAll();
+				}
+			}
+		}, 4);
+		int rule = engine.addRule(TiINA219Snapshot.CHANNEL_CURRENT, TiINA219AlertEngine.ABOVE, 100, 10, 2);
+		engine.start();
+
+		// A single sample above does not trigger, nor one inside the band
+		// clear
+		int[] current = { 50, 150, 50, 150, 160, 95, 85, 80 };
+		boolean[] active = { false, false, false, false, true, true, true, false };
+		for (int i = 0; i < current.length; i++) {
+			sample(i * 1000L, 0, current[i], 0);
+			engine.onSample(null, snapshot);
+			assertEquals("sample " + i, active[i], engine.isActive(rule));
+		}
+
+		synchronized (eventCount) {
+			long deadline = System.currentTimeMillis() + 1000;
+			while (eventCount[0] < 2 && System.currentTimeMillis() < deadline) {
+				eventCount.wait(100);
+			}
+		}
+		engine.stop();
+
+		assertEquals(2, eventCount[0]);
+		assertEquals(160, events[0]);
+		assertEquals(-80, events[1]);
+		assertEquals(0, engine.getDroppedCount());
+	}
+
+	@Test
+	public void rateAlertUsesSampleInterval() {
+		TiINA219AlertEngine engine = new TiINA219AlertEngine(new TiINA219AlertListener() {
+			public void onAlert(int rule, boolean active, int value, long timestamp_us) {
+			}
+		}, 4);
+		// 1000 raw units per second
+		int rule = engine.addRule(TiINA219Snapshot.CHANNEL_SHUNT, TiINA219AlertEngine.RATE, 1000, 0, 1);
+
+		// 10 units in 100ms is 100 per second
+		sample(0, 0, 0, 0);
+		engine.onSample(null, snapshot);
+		sample(100000, 10, 0, 0);
+		engine.onSample(null, snapshot);
+		assertFalse(engine.isActive(rule));
+
+		// 10 units in 1ms is 10000 per second
+		sample(101000, 20, 0, 0);
+		engine.onSample(null, snapshot);
+		assertTrue(engine.isActive(rule));
+	}
+
+	private void sample(long timestamp_us, int shunt, int current, int power) {
+		snapshot.timestamp_us = timestamp_us;
+		snapshot.shuntRaw = shunt;
+		snapshot.busRegister = (12000 / 4) << 3;
+		snapshot.currentRaw = current;
+		snapshot.powerRaw = power;
+		snapshot.calibration = CALIBRATION;
+	}
+
+}
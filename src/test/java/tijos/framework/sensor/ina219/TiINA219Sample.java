@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import tijos.framework.devicecenter.TiI2CMaster;
 import tijos.framework.sensor.ina219.TiINA219;
+import tijos.framework.sensor.ina219.TiINA219Snapshot;
 import tijos.framework.util.Delay;
 
 public class TiINA219Sample {
@@ -31,6 +32,8 @@ public class TiINA219Sample {
 
 			System.out.println("Measuring voltage and current with INA219 ...");
 
+			TiINA219Snapshot snapshot = new TiINA219Snapshot();
+
 			int num = 100;
 			while (num-- > 0) {
 				try {
@@ -40,9 +43,11 @@ public class TiINA219Sample {
 					double current_mA = 0;
 					double loadvoltage = 0;
 
-					shuntvoltage = ina219.getShuntVoltage_mV();
-					busvoltage = ina219.getBusVoltage_V();
-					current_mA = ina219.getCurrent_mA();
+					ina219.readSnapshot(snapshot);
+
+					shuntvoltage = snapshot.getShuntVoltage_mV();
+					busvoltage = snapshot.getBusVoltage_V();
+					current_mA = snapshot.getCurrent_mA();
 					loadvoltage = busvoltage + (shuntvoltage / 1000);
 
 					System.out.print("Bus Voltage:   ");
@@ -0,0 +1,423 @@
+package tijos.framework.sensor.ina219;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Driver checks against TiINA219Simulator, run with mvn -P simulator test
+ *
+ * @author TiJOS
+ */
+public class TiINA219SimulatorTest {
+
+	static final int ADDR = TiINA219.INA219_ADDR_GG;
+
+	// CONFIG power-on value read as a shunt voltage
+	static final int CONFIG_AS_SHUNT = TiINA219Register.INA219_CONFIG_RESET;
+
+	TiINA219Simulator simulator;
+	TiINA219 ina219;
+
+	@Before
+	public void setUp() throws IOException {
+		simulator = new TiINA219Simulator();
+		simulator.addDevice(ADDR);
+
+		// 10mV across 0.1 ohm is 100mA
+		simulator.setInput(ADDR, 10000, 12000);
+
+		ina219 = new TiINA219(simulator, ADDR);
+		ina219.setCalibration_32V_2A();
+	}
+
+	@Test
+	public void calibrationIsRestoredAfterReset() throws IOException {
+		assertEquals(100.0, ina219.readNextSnapshot(null, 100).getCurrent_mA(), 0.1);
+
+		simulator.reset(ADDR);
+		waitConversion();
+
+		// The first read after the reset sees CURRENT at 0 and restores
+		ina219.getCurrent_mA();
+		assertEquals(ina219.getCalibration().getCalValue(),
+				simulator.getRegister(ADDR, TiINA219Register.INA219_REG_CALIBRATION));
+
+		assertEquals(100.0, ina219.readNextSnapshot(null, 100).getCurrent_mA(), 0.1);
+	}
+
+	@Test
+	public void pointerTrackingIsOffByDefault() throws IOException {
+		ina219.getShuntVoltage_raw();
+		ina219.getShuntVoltage_raw();
+		simulator.reset(ADDR);
+
+		for (int i = 0; i < 5; i++) {
+			assertNotEquals(CONFIG_AS_SHUNT, ina219.getShuntVoltage_raw());
+		}
+		assertEquals(0, simulator.getBareReadCount());
+	}
+
+	@Test
+	public void currentIsAddressedAcrossResetWithPointerTracking() throws IOException {
+		ina219.getBus().setPointerTracking(64);
+		waitConversion();
+
+		ina219.getCurrent_raw();
+		ina219.getCurrent_raw();
+		simulator.reset(ADDR);
+
+		// CALIBRATION_GUARD_DETECT needs the real CURRENT value to see the
+		// reset
+		for (int i = 0; i < 5; i++) {
+			assertNotEquals(CONFIG_AS_SHUNT, ina219.getCurrent_raw());
+			waitConversion();
+		}
+		assertEquals(100.0, ina219.getCurrent_mA(), 0.1);
+	}
+
+	@Test
+	public void shuntStreamUsesBareReadsWithPointerTracking() throws IOException {
+		ina219.getBus().setPointerTracking(64);
+
+		simulator.resetCounters();
+		for (int i = 0; i < 10; i++) {
+			ina219.getShuntVoltage_raw();
+		}
+		assertEquals(9, simulator.getBareReadCount());
+	}
+
+	@Test
+	public void currentStreamUsesBareReadsWithPeriodicCheck() throws IOException {
+		ina219.getBus().setPointerTracking(8);
+		ina219.setCalibrationGuard(TiINA219.CALIBRATION_GUARD_DETECT, 8);
+		waitConversion();
+
+		simulator.resetCounters();
+		for (int i = 0; i < 100; i++) {
+			ina219.getCurrent_raw();
+		}
+		// The readback every 8 reads moves the pointer
+		assertTrue("bare reads " + simulator.getBareReadCount(), simulator.getBareReadCount() >= 80);
+
+		// A reset is found by the readback within 8 reads
+		simulator.reset(ADDR);
+		waitConversion();
+		for (int i = 0; i < 8; i++) {
+			ina219.getCurrent_raw();
+		}
+		waitConversion();
+		assertEquals(100.0, ina219.getCurrent_mA(), 0.1);
+	}
+
+	@Test
+	public void groupTriggerPollsOncePerConversion() throws IOException {
+		int devices = 3;
+		TiINA219[] sensors = new TiINA219[devices];
+		sensors[0] = ina219;
+		for (int i = 1; i < devices; i++) {
+			simulator.addDevice(ADDR + i);
+			simulator.setInput(ADDR + i, 10000, 12000);
+			sensors[i] = new TiINA219(simulator, ADDR + i);
+			sensors[i].setCalibration_32V_2A();
+		}
+
+		TiINA219Group group = new TiINA219Group(sensors);
+		TiINA219Frame frame = null;
+		for (int n = 0; n < 3; n++) {
+			simulator.resetCounters();
+			frame = group.trigger(frame, 100);
+
+			// One read of each register, a few CNVR polls at most
+			assertTrue("reads " + simulator.getReadCount(), simulator.getReadCount() <= 8 * devices);
+			assertEquals(300.0, frame.getTotalCurrent_mA(), 0.5);
+		}
+	}
+
+	@Test
+	public void busVoltageAbove16V() throws IOException {
+		simulator.setInput(ADDR, 10000, 20000);
+		TiINA219Snapshot snapshot = ina219.readNextSnapshot(null, 100);
+
+		assertEquals(20000, snapshot.getBusVoltage_mV());
+		assertEquals(20000, ina219.getBusVoltage_mV());
+		assertEquals(20.0, ina219.getBusVoltage_V(), 0.001);
+	}
+
+	@Test
+	public void rangeSwitchKeepsCurrentScale() throws IOException {
+		// 3mV across 0.1 ohm is 30mA, auto-ranging steps down to 40mV
+		simulator.setInput(ADDR, 3000, 5000);
+
+		TiINA219AutoRange autoRange = new TiINA219AutoRange(100000, TiINA219.INA219_CONFIG_BVOLTAGERANGE_32V,
+				TiINA219.INA219_CONFIG_BADCRES_12BIT, TiINA219.INA219_CONFIG_SADCRES_12BIT_1S_532US);
+		autoRange.setThresholds(90, 80, 1);
+		ina219.setAutoRange(autoRange);
+		waitConversion();
+
+		TiINA219Snapshot snapshot = new TiINA219Snapshot();
+		for (int i = 0; i < 20; i++) {
+			ina219.readSnapshot(snapshot);
+			assertEquals(30.0, snapshot.getCurrent_mA(), 0.1);
+			waitConversion();
+		}
+		assertEquals(TiINA219.INA219_CONFIG_GAIN_1_40MV, ina219.getCalibration().getGain());
+	}
+
+	@Test
+	public void samplerKeepsCalibrationOfEachSample() throws Exception {
+		simulator.setInput(ADDR, 3000, 5000);
+
+		TiINA219AutoRange autoRange = new TiINA219AutoRange(100000, TiINA219.INA219_CONFIG_BVOLTAGERANGE_32V,
+				TiINA219.INA219_CONFIG_BADCRES_12BIT, TiINA219.INA219_CONFIG_SADCRES_12BIT_1S_532US);
+		autoRange.setThresholds(90, 80, 1);
+		ina219.setAutoRange(autoRange);
+
+		TiINA219Sampler sampler = new TiINA219Sampler(ina219, 256, TiINA219Sampler.OVERWRITE);
+		sampler.start();
+		Thread.sleep(100);
+		sampler.stop();
+
+		int[] current = new int[256];
+		TiINA219Calibration[] calibrations = new TiINA219Calibration[256];
+		int n = sampler.drain(null, null, current, null, null, calibrations, 0, current.length);
+		assertTrue("samples " + n, n >= 10);
+
+		// Steps down from 320mV to 40mV while sampling
+		assertNotEquals(calibrations[0].getGain(), calibrations[n - 1].getGain());
+		for (int i = 0; i < n; i++) {
+			assertEquals(30000, calibrations[i].toCurrent_uA(current[i]), 100);
+		}
+	}
+
+	@Test
+	public void logRoundTrip() throws IOException {
+		int samples = 200;
+		TiINA219Snapshot[] written = new TiINA219Snapshot[samples];
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TiINA219LogWriter writer = new TiINA219LogWriter(out, 16);
+		for (int i = 0; i < samples; i++) {
+			if (i == samples / 2) {
+				// Calibration record in the middle of the log
+				ina219.setCalibration_32V_1A();
+			}
+			simulator.setInput(ADDR, 10000 - 97 * i, 12000 + 13 * i);
+
+			written[i] = ina219.readNextSnapshot(null, 100);
+			writer.write(written[i]);
+		}
+		writer.close();
+
+		TiINA219LogReader reader = new TiINA219LogReader(new ByteArrayInputStream(out.toByteArray()));
+		TiINA219Snapshot read = new TiINA219Snapshot();
+		for (int i = 0; i < samples; i++) {
+			assertTrue(reader.read(read));
+			assertEquals(written[i].getTimestamp_us(), read.getTimestamp_us());
+			assertEquals(written[i].getShuntVoltage_raw(), read.getShuntVoltage_raw());
+			assertEquals(written[i].getBusVoltage_register(), read.getBusVoltage_register());
+			assertEquals(written[i].getCurrent_raw(), read.getCurrent_raw());
+			assertEquals(written[i].getPower_raw(), read.getPower_raw());
+			assertEquals(written[i].getCalibration().getCalValue(), read.getCalibration().getCalValue());
+			assertEquals(written[i].getCurrent_uA(), read.getCurrent_uA());
+		}
+		assertFalse(reader.read(read));
+	}
+
+	@Test
+	public void warmStartSkipsWritesWhenConfigured() throws IOException {
+		TiINA219Calibration calibration = ina219.getCalibration();
+		waitConversion();
+
+		// Application restart, the device kept its registers
+		TiINA219 restarted = new TiINA219(simulator, ADDR);
+		simulator.resetCounters();
+		assertTrue(restarted.warmStart(calibration));
+		assertEquals(0, simulator.getWriteCount());
+		assertEquals(100.0, restarted.readSnapshot(null).getCurrent_mA(), 0.1);
+
+		// Only the config register differs
+		ina219.setMode(TiINA219.INA219_CONFIG_MODE_POWERDOWN);
+		simulator.resetCounters();
+		assertFalse(restarted.warmStart(calibration));
+		assertEquals(1, simulator.getWriteCount());
+		assertEquals(calibration.getConfig(), simulator.getRegister(ADDR, TiINA219Register.INA219_REG_CONFIG));
+
+		// Brown-out, both registers differ
+		simulator.reset(ADDR);
+		simulator.resetCounters();
+		assertFalse(restarted.warmStart(calibration));
+		assertEquals(2, simulator.getWriteCount());
+		assertEquals(100.0, restarted.readNextSnapshot(null, 100).getCurrent_mA(), 0.1);
+	}
+
+	@Test
+	public void transientCaptureFreezesWindowAroundStep() throws Exception {
+		simulator.setInput(ADDR, 1000, 5000);
+		simulator.setLatency_us(100);
+
+		TiINA219TransientCapture capture = new TiINA219TransientCapture(ina219, 8, 4);
+		// Below one LSB, must not fire on the 1000uV steady input
+		capture.setSlopeTrigger(5);
+		capture.start();
+		try {
+			Thread.sleep(20);
+			assertEquals(TiINA219TransientCapture.STATE_ARMED, capture.getState());
+
+			capture.setLevelTrigger(50000, true);
+			simulator.setInput(ADDR, 200000, 5000);
+			assertTrue(capture.waitCapture(500));
+
+			int[] shunt_uV = new int[13];
+			assertEquals(13, capture.readCapture(shunt_uV, null));
+			int trigger = capture.getTriggerIndex();
+			assertEquals(8, trigger);
+			assertEquals(1000, shunt_uV[trigger - 1]);
+			assertEquals(200000, shunt_uV[trigger]);
+			assertEquals(200000, shunt_uV[12]);
+		} finally {
+			capture.stop();
+		}
+
+		// ADC settings and mode restored
+		assertEquals(ina219.getCalibration().getConfig(),
+				simulator.getRegister(ADDR, TiINA219Register.INA219_REG_CONFIG));
+	}
+
+	@Test
+	public void triggeredSamplerWaitsForLongConversions() throws Exception {
+		// 128 samples on the shunt, about 69ms per conversion, 5ms period
+		ina219.setCalibration(TiINA219Calibration.withCurrentLSB(100000, 100, TiINA219.INA219_CONFIG_BVOLTAGERANGE_32V,
+				TiINA219.INA219_CONFIG_GAIN_8_320MV, TiINA219.INA219_CONFIG_BADCRES_12BIT,
+				TiINA219.INA219_CONFIG_SADCRES_12BIT_128S_69MS));
+
+		final int[] samples = new int[1];
+		TiINA219TriggeredSampler sampler = new TiINA219TriggeredSampler(ina219, 5, new TiINA219SampleListener() {
+			public void onSample(TiINA219 sensor, TiINA219Snapshot snapshot) {
+				synchronized (samples) {
+					samples[0]++;
+				}
+			}
+		});
+
+		sampler.start();
+		Thread.sleep(400);
+		sampler.stop();
+
+		synchronized (samples) {
+			assertTrue("samples " + samples[0], samples[0] >= 2);
+		}
+		assertEquals(0, sampler.getErrorCount());
+	}
+
+	@Test
+	public void breakerOpensAndClosesAfterTrial() throws Exception {
+		TiINA219CircuitBreaker breaker = new TiINA219CircuitBreaker(ina219);
+		breaker.setRetry(0, 0, 0);
+		breaker.setTrip(2, 50);
+
+		simulator.removeDevice(ADDR);
+		for (int i = 0; i < 3; i++) {
+			try {
+				breaker.readSnapshot(null);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		assertEquals(TiINA219CircuitBreaker.STATE_OPEN, breaker.getState());
+		assertEquals(2, breaker.getFailureCount());
+		assertEquals(1, breaker.getRejectCount());
+
+		// Power cycled device, calibrated again by the trial read
+		simulator.addDevice(ADDR);
+		simulator.setInput(ADDR, 10000, 12000);
+		Thread.sleep(60);
+		assertEquals(TiINA219CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+		breaker.readSnapshot(null);
+		assertEquals(TiINA219CircuitBreaker.STATE_CLOSED, breaker.getState());
+		assertEquals(ina219.getCalibration().getCalValue(),
+				simulator.getRegister(ADDR, TiINA219Register.INA219_REG_CALIBRATION));
+	}
+
+	@Test
+	public void breakerStateIsReadableDuringBackoff() throws Exception {
+		final TiINA219CircuitBreaker breaker = new TiINA219CircuitBreaker(ina219);
+		breaker.setRetry(1, 300, 300);
+		simulator.removeDevice(ADDR);
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					breaker.readSnapshot(null);
+				} catch (IOException e) {
+					// Expected
+				}
+			}
+		});
+		reader.start();
+		Thread.sleep(20);
+
+		long start = System.currentTimeMillis();
+		assertEquals(TiINA219CircuitBreaker.STATE_CLOSED, breaker.getState());
+		assertEquals(1, breaker.getRetryCount());
+		assertTrue(System.currentTimeMillis() - start < 100);
+
+		reader.join();
+		assertEquals(1, breaker.getFailureCount());
+	}
+
+	@Test
+	public void arrayPublishesEachConversionOnce() throws Exception {
+		TiINA219Array array = new TiINA219Array(ina219.getBus());
+		array.setDefaultCalibration(ina219.getCalibration());
+		assertEquals(1, array.probe());
+
+		simulator.resetCounters();
+		array.start();
+		Thread.sleep(200);
+		array.stop();
+
+		// Polled about once per 1064us conversion, not in a busy loop
+		assertTrue("reads " + simulator.getReadCount(), simulator.getReadCount() < 1000);
+		TiINA219Snapshot snapshot = new TiINA219Snapshot();
+		assertTrue(array.getSnapshot(ADDR, snapshot));
+		assertEquals(100.0, snapshot.getCurrent_mA(), 0.1);
+		assertEquals(0, array.getErrorCount(ADDR));
+	}
+
+	@Test
+	public void arraySleepsWhileCircuitIsOpen() throws Exception {
+		TiINA219Array array = new TiINA219Array(ina219.getBus());
+		array.setDefaultCalibration(ina219.getCalibration());
+		assertEquals(1, array.probe());
+		array.getBreaker(ADDR).setRetry(0, 0, 0);
+		array.getBreaker(ADDR).setTrip(1, 10000);
+
+		simulator.removeDevice(ADDR);
+		array.start();
+		Thread.sleep(200);
+		array.stop();
+
+		assertEquals(TiINA219CircuitBreaker.STATE_OPEN, array.getBreaker(ADDR).getState());
+		assertEquals(1, array.getErrorCount(ADDR));
+		assertEquals(0, array.getBreaker(ADDR).getRejectCount());
+	}
+
+	// Longer than one 12-bit shunt and bus conversion
+	private static void waitConversion() {
+		try {
+			Thread.sleep(2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}